@@ -0,0 +1,113 @@
+package com.lili.map;
+
+import java.util.*;
+
+/*
+ * 带索引的Map骨架。AbstractMap的get/containsKey/remove都是遍历entrySet，每次查找O(n)，
+ * equals对每个条目调用一次get，整体O(n^2)
+ *
+ * 子类实现getEntry，用自己的索引(散列表、数组下标等)在O(1)内找到条目，
+ * get/getOrDefault/containsKey以及keySet().contains都基于getEntry
+ * 可修改的子类实现removeEntry，并在每次修改(包括Entry.setValue)后调用modified()
+ *
+ * equals：先比较size，两边都是AbstractHashedMap且都已缓存hashCode时比较缓存值，
+ *      不相等直接返回false；否则遍历对方的条目，在自己的索引中查找，整体O(n)
+ * hashCode：构造时cacheHashCode为true的子类计算一次后缓存，modified()使缓存失效
+ *      视图这类无法感知底层修改的子类不要开启缓存
+ */
+public abstract class AbstractHashedMap<K,V> extends AbstractMap<K,V> {
+
+    private final boolean cacheHashCode;
+    private transient int hashCache;
+    private transient boolean hashValid;
+
+    protected AbstractHashedMap() {
+        this(false);
+    }
+    protected AbstractHashedMap(boolean cacheHashCode) {
+        this.cacheHashCode = cacheHashCode;
+    }
+
+    /*
+     * 作用：返回key对应的条目，不存在时返回null，子类用自己的索引实现
+     */
+    protected abstract Entry<K,V> getEntry(Object key);
+
+    /*
+     * 作用：删除key对应的条目并返回它，不存在时返回null
+     *      不支持删除的子类不需要覆盖
+     */
+    protected Entry<K,V> removeEntry(Object key) {
+        throw new UnsupportedOperationException();
+    }
+
+    // 子类在增删改之后调用，使缓存的hashCode失效
+    protected final void modified() {
+        hashValid = false;
+    }
+
+    public V get(Object key) {
+        Entry<K,V> e = getEntry(key);
+        return (e == null) ? null : e.getValue();
+    }
+
+    public V getOrDefault(Object key, V defaultValue) {
+        Entry<K,V> e = getEntry(key);
+        return (e == null) ? defaultValue : e.getValue();
+    }
+
+    public boolean containsKey(Object key) {
+        return getEntry(key) != null;
+    }
+
+    public V remove(Object key) {
+        Entry<K,V> e = removeEntry(key);
+        if (e == null)
+            return null;
+        modified();
+        return e.getValue();
+    }
+
+    public void clear() {
+        entrySet().clear();
+        modified();
+    }
+
+    public boolean equals(Object o) {
+        if (o == this)
+            return true;
+        if (!(o instanceof java.util.Map))
+            return false;
+        java.util.Map<?,?> m = (java.util.Map<?,?>) o;
+        if (m.size() != size())
+            return false;
+        if (m instanceof AbstractHashedMap) {
+            AbstractHashedMap<?,?> h = (AbstractHashedMap<?,?>) m;
+            if (hashValid && h.hashValid && hashCache != h.hashCache)
+                return false;
+        }
+        try {
+            // 在自己的索引中查找对方的条目，不依赖对方get的复杂度
+            for (Entry<?,?> e : m.entrySet()) {
+                Entry<K,V> mine = getEntry(e.getKey());
+                if (mine == null || !Objects.equals(mine.getValue(), e.getValue()))
+                    return false;
+            }
+        } catch (ClassCastException unused) {
+            return false;
+        } catch (NullPointerException unused) {
+            return false;
+        }
+        return true;
+    }
+
+    public int hashCode() {
+        if (!cacheHashCode)
+            return super.hashCode();
+        if (!hashValid) {
+            hashCache = super.hashCode();
+            hashValid = true;
+        }
+        return hashCache;
+    }
+}
@@ -0,0 +1,190 @@
+package com.lili.map;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+
+/*
+ * 异步加载的缓存Map，每个key对应一个CompletableFuture<V>
+ *
+ * 合并加载：同一个key的并发未命中只会触发一次加载，后到的调用方拿到的是同一个future
+ * 加载在executor上执行，调用方不会被阻塞。缺省使用ForkJoinPool.commonPool()，
+ *      运行在JDK 21+时可以传入Executors.newVirtualThreadPerTaskExecutor()让每次加载跑在虚拟线程上
+ * 批量加载：getAllAsync把所有未命中的key合并成一次Loader.loadAll调用
+ *
+ * 底层是一个HashMap<K, CompletableFuture<V>>，只在登记/删除future时短暂加锁，加载过程不持有锁
+ * 加载失败或结果为null时删除对应的future，下一次get会重新加载
+ */
+public class AsyncLoadingMap<K,V> {
+
+    /*
+     * 加载器。loadAll缺省逐个调用load，远程存储支持批量接口时应该覆盖它
+     */
+    @FunctionalInterface
+    public interface Loader<K,V> {
+        V load(K key) throws Exception;
+
+        default java.util.Map<K,V> loadAll(Set<? extends K> keys) throws Exception {
+            java.util.Map<K,V> result = new HashMap<>(keys.size());
+            for (K key : keys)
+                result.put(key, load(key));
+            return result;
+        }
+    }
+
+    private final HashMap<K,CompletableFuture<V>> futures = new HashMap<>();
+    private final Loader<K,V> loader;
+    private final Executor executor;
+
+    public AsyncLoadingMap(Loader<K,V> loader) {
+        this(loader, ForkJoinPool.commonPool());
+    }
+    public AsyncLoadingMap(Loader<K,V> loader, Executor executor) {
+        this.loader = Objects.requireNonNull(loader);
+        this.executor = Objects.requireNonNull(executor);
+    }
+
+    /*
+     * 作用：返回key对应的future，未命中时用loader异步加载
+     */
+    public CompletableFuture<V> getAsync(K key) {
+        return computeIfAbsentAsync(key, k -> {
+            try {
+                return loader.load(k);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    /*
+     * 作用：与getAsync相同，但未命中时用mappingFunction代替loader加载
+     */
+    public CompletableFuture<V> computeIfAbsentAsync(K key,
+                                                     Function<? super K, ? extends V> mappingFunction) {
+        Objects.requireNonNull(mappingFunction);
+        CompletableFuture<V> f, created;
+        synchronized (futures) {
+            if ((f = futures.get(key)) != null)
+                return f;
+            futures.put(key, created = new CompletableFuture<>());
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    complete(key, created, mappingFunction.apply(key));
+                } catch (Throwable ex) {
+                    fail(key, created, ex);
+                }
+            });
+        } catch (Throwable ex) {
+            // executor拒绝任务
+            fail(key, created, ex);
+        }
+        return created;
+    }
+
+    /*
+     * 作用：批量获取，已缓存的key直接复用future，所有未命中的key合并成一次loader.loadAll调用
+     *      loadAll结果中缺少的key按null处理
+     */
+    public CompletableFuture<java.util.Map<K,V>> getAllAsync(Iterable<? extends K> keys) {
+        java.util.Map<K,CompletableFuture<V>> all = new LinkedHashMap<>();
+        HashMap<K,CompletableFuture<V>> misses = new HashMap<>();
+        synchronized (futures) {
+            for (K key : keys) {
+                if (all.containsKey(key))
+                    continue;
+                CompletableFuture<V> f = futures.get(key);
+                if (f == null) {
+                    futures.put(key, f = new CompletableFuture<>());
+                    misses.put(key, f);
+                }
+                all.put(key, f);
+            }
+        }
+        if (!misses.isEmpty()) {
+            try {
+                executor.execute(() -> loadMisses(misses));
+            } catch (Throwable ex) {
+                misses.forEach((k, f) -> fail(k, f, ex));
+            }
+        }
+        CompletableFuture<?>[] fs = all.values().toArray(new CompletableFuture<?>[0]);
+        return CompletableFuture.allOf(fs).thenApply(ignored -> {
+            java.util.Map<K,V> result = new LinkedHashMap<>(all.size() * 2);
+            all.forEach((k, f) -> result.put(k, f.join()));
+            return result;
+        });
+    }
+
+    private void loadMisses(HashMap<K,CompletableFuture<V>> misses) {
+        java.util.Map<K,V> loaded;
+        try {
+            loaded = loader.loadAll(Collections.unmodifiableSet(misses.keySet()));
+        } catch (Throwable ex) {
+            misses.forEach((k, f) -> fail(k, f, ex));
+            return;
+        }
+        misses.forEach((k, f) -> complete(k, f, (loaded == null) ? null : loaded.get(k)));
+    }
+
+    private void complete(K key, CompletableFuture<V> f, V value) {
+        if (value == null)
+            unregister(key, f);
+        f.complete(value);
+    }
+
+    private void fail(K key, CompletableFuture<V> f, Throwable ex) {
+        unregister(key, f);
+        f.completeExceptionally(ex);
+    }
+
+    // 只删除仍然是f的映射，invalidate之后新登记的future不受影响
+    private void unregister(K key, CompletableFuture<V> f) {
+        synchronized (futures) {
+            futures.remove(key, f);
+        }
+    }
+
+    // 已经加载完成的值，未加载、加载中或加载失败时返回null，不会触发加载
+    public V getIfPresent(Object key) {
+        CompletableFuture<V> f;
+        synchronized (futures) {
+            f = futures.get(key);
+        }
+        return (f != null && f.isDone() && !f.isCompletedExceptionally()) ? f.join() : null;
+    }
+
+    public void put(K key, V value) {
+        Objects.requireNonNull(value);
+        synchronized (futures) {
+            futures.put(key, CompletableFuture.completedFuture(value));
+        }
+    }
+
+    // 删除key，正在进行的加载完成后不会再写回
+    public void invalidate(Object key) {
+        synchronized (futures) {
+            futures.remove(key);
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (futures) {
+            futures.clear();
+        }
+    }
+
+    // 包含正在加载中的key
+    public int size() {
+        synchronized (futures) {
+            return futures.size();
+        }
+    }
+}
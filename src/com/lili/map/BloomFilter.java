@@ -0,0 +1,107 @@
+package com.lili.map;
+
+/*
+ * 分块Bloom过滤器(blocked Bloom filter)，由HashMap.enableBloomFilter开启，挡在getNode前面
+ *
+ * 位数组按512位(8个long，一条缓存行)分块，一个hash只落在一个块内：
+ *      块号取hash乘法扰动后的高位，块内k个位置取另一组位，每个位置9位(0~511)
+ *      一次查询最多访问一条缓存行，mightContain返回false时key一定不存在，不需要再访问table
+ * 输入是HashMap中已经扰动过的Node.hash，重建时直接用Node中保存的hash，不调用hashCode
+ *
+ * 不支持删除：删除留下的位只会提高误判率，不会漏判，HashMap在删除累计到一定数量、resize、shrink、rehash时整体重建
+ */
+public final class BloomFilter {
+
+    static final int BLOCK_BITS = 512;
+    static final int WORDS_PER_BLOCK = BLOCK_BITS / Long.SIZE;
+    // 每个位置用9位，64位扰动值最多取7个位置
+    static final int MAX_HASHES = 7;
+
+    private final long[] words;
+    private final int blockShift;
+    private final int k;
+    private int bitsSet;
+    private int entries;
+
+    /*
+     * 参数：expectedEntries  预计元素个数
+     *      bitsPerEntry     每个元素分配的位数，越大误判率越低，10位时约1%
+     */
+    BloomFilter(int expectedEntries, int bitsPerEntry) {
+        if (bitsPerEntry <= 0)
+            throw new IllegalArgumentException("Illegal bits per entry: " + bitsPerEntry);
+        long bits = (long) Math.max(expectedEntries, 1) * bitsPerEntry;
+        int blocks = HashMap.tableSizeFor((int) Math.min((bits + BLOCK_BITS - 1) / BLOCK_BITS, 1 << 20));
+        words = new long[blocks * WORDS_PER_BLOCK];
+        blockShift = 64 - Integer.numberOfTrailingZeros(blocks);
+        k = Math.max(1, Math.min(MAX_HASHES, Math.round(bitsPerEntry * 0.6931f)));
+    }
+
+    // 返回hash所在块的第一个word的下标
+    private int blockOf(long x) {
+        return (blockShift == 64) ? 0 : (int) (x >>> blockShift) * WORDS_PER_BLOCK;
+    }
+
+    final void add(int hash) {
+        long x = (hash & 0xffffffffL) * 0x9E3779B97F4A7C15L;
+        long y = (x ^ (x >>> 31)) * 0xBF58476D1CE4E5B9L;
+        long[] w = words;
+        int base = blockOf(x);
+        for (int i = 0; i < k; ++i, y >>>= 9) {
+            int bit = (int) y & (BLOCK_BITS - 1);
+            int j = base + (bit >>> 6);
+            long m = 1L << bit;
+            if ((w[j] & m) == 0L) {
+                w[j] |= m;
+                ++bitsSet;
+            }
+        }
+        ++entries;
+    }
+
+    // 返回false时hash一定没有加入过
+    final boolean mightContain(int hash) {
+        long x = (hash & 0xffffffffL) * 0x9E3779B97F4A7C15L;
+        long y = (x ^ (x >>> 31)) * 0xBF58476D1CE4E5B9L;
+        long[] w = words;
+        int base = blockOf(x);
+        for (int i = 0; i < k; ++i, y >>>= 9) {
+            int bit = (int) y & (BLOCK_BITS - 1);
+            if ((w[base + (bit >>> 6)] & (1L << bit)) == 0L)
+                return false;
+        }
+        return true;
+    }
+
+    final void clear() {
+        java.util.Arrays.fill(words, 0L);
+        bitsSet = entries = 0;
+    }
+
+    /*
+     * 作用：按当前置位比例估计的误判率 (置位比例)^k
+     *      包括删除后残留的位，分块带来的块间不均匀没有计入，实际值略高
+     */
+    public double falsePositiveRate() {
+        return Math.pow((double) bitsSet / ((long) words.length * Long.SIZE), k);
+    }
+
+    // 位数组占用的字节数
+    public long memoryBytes() {
+        return (long) words.length * Long.BYTES;
+    }
+
+    // 加入过的hash个数(包括之后被删除的)
+    public int entries() {
+        return entries;
+    }
+
+    public int hashFunctions() {
+        return k;
+    }
+
+    public String toString() {
+        return "BloomFilter[entries=" + entries + ", bytes=" + memoryBytes() +
+                ", k=" + k + ", fpp=" + String.format("%.4f", falsePositiveRate()) + "]";
+    }
+}
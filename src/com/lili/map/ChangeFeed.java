@@ -0,0 +1,270 @@
+package com.lili.map;
+
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * HashMap的变更流，由HashMap.enableChangeFeed开启
+ *
+ * 写入：HashMap在putVal/removeNode/replace/replaceAll/compute系列/merge/clear中调用publish，
+ *      事件写入固定大小的环形缓冲区后立即返回，变更路径不会阻塞也不会等待订阅者
+ *      HashMap本身不是线程安全的，因此只有一个写线程，环形缓冲区按单生产者实现
+ * 读取：每个订阅者有自己的读位置，在executor上按request(n)给出的需求批量投递，一批最多maxBatch个事件
+ *      订阅者落后超过缓冲区容量时，旧事件已被覆盖，此时对该订阅者调用onError(FeedOverflowException)并取消订阅，
+ *      订阅者需要重新全量同步
+ *      onNext抛出异常时取消该订阅并调用onError
+ * 调度：写线程不为每个事件提交drain，只在订阅者有需求、drain空闲并且积累了一批(min(需求, maxBatch, 缓冲区一半))时才提交
+ *      不满一批的剩余事件由flusher线程每maxDelayMillis检查一次后投递；没有需求的订阅者由request触发投递
+ *      maxDelayMillis为0时不启动flusher，每个事件都尝试调度，延迟最低但订阅者比写线程快时每次修改都会提交一次任务
+ * executor应当在其他线程上执行任务：CallerRunsPolicy这类在调用线程执行的executor会让订阅者代码
+ *      运行在修改Map的线程上，阻塞变更路径；拒绝任务的executor会使订阅以onError结束
+ *
+ * 接口形状与java.util.concurrent.Flow一致(Publisher/Subscriber/Subscription)，项目以Java 8为目标，所以单独定义
+ * 开启变更流后entrySet交出的条目是HashMap.TrackedEntry，Map.Entry.setValue同样会产生REPLACE事件
+ */
+public class ChangeFeed<K,V> {
+
+    public enum Type { PUT, REPLACE, REMOVE, CLEAR }
+
+    public static final class ChangeEvent<K,V> {
+        public final long sequence;
+        public final Type type;
+        public final K key;
+        public final V oldValue;
+        public final V newValue;
+
+        ChangeEvent(long sequence, Type type, K key, V oldValue, V newValue) {
+            this.sequence = sequence;
+            this.type = type;
+            this.key = key;
+            this.oldValue = oldValue;
+            this.newValue = newValue;
+        }
+
+        public String toString() {
+            return "#" + sequence + " " + type + " " + key + ": " + oldValue + " -> " + newValue;
+        }
+    }
+
+    public interface Subscriber<K,V> {
+        void onSubscribe(Subscription subscription);
+        // batch中事件按sequence递增，个数不超过已request且未投递的数量
+        void onNext(List<ChangeEvent<K,V>> batch);
+        void onError(Throwable throwable);
+        void onComplete();
+    }
+
+    public interface Subscription {
+        void request(long n);
+        void cancel();
+    }
+
+    public static class FeedOverflowException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        FeedOverflowException(long lost) {
+            super("Subscriber fell behind, " + lost + " events overwritten");
+        }
+    }
+
+    static final long DEFAULT_MAX_DELAY_MILLIS = 5L;
+
+    private final ChangeEvent<K,V>[] ring;
+    private final int mask;
+    private final int maxBatch;
+    private final int batchThreshold;   // 写线程调度drain所需的最少积压事件数，不超过缓冲区的一半
+    private final Executor executor;
+    private final ScheduledExecutorService flusher;
+    // 下一个要写入的序号，volatile写保证订阅者读到序号时也能读到对应槽位中的事件
+    private volatile long tail;
+    private final List<FeedSubscription> subscriptions = new java.util.concurrent.CopyOnWriteArrayList<>();
+    private volatile boolean closed;
+
+    @SuppressWarnings("unchecked")
+    ChangeFeed(int capacity, int maxBatch, long maxDelayMillis, Executor executor) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Illegal capacity: " + capacity);
+        if (maxBatch <= 0)
+            throw new IllegalArgumentException("Illegal batch size: " + maxBatch);
+        if (maxDelayMillis < 0)
+            throw new IllegalArgumentException("Illegal max delay: " + maxDelayMillis);
+        int n = HashMap.tableSizeFor(capacity);
+        this.ring = (ChangeEvent<K,V>[]) new ChangeEvent<?,?>[n];
+        this.mask = n - 1;
+        this.maxBatch = maxBatch;
+        this.batchThreshold = Math.max(1, Math.min(maxBatch, n >>> 1));
+        this.executor = Objects.requireNonNull(executor);
+        if (maxDelayMillis > 0) {
+            flusher = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread t = new Thread(task, "ChangeFeed-flusher");
+                t.setDaemon(true);
+                return t;
+            });
+            flusher.scheduleWithFixedDelay(this::flush, maxDelayMillis, maxDelayMillis, TimeUnit.MILLISECONDS);
+        }
+        else
+            flusher = null;
+    }
+
+    // 已经发布的事件总数
+    public long sequence() {
+        return tail;
+    }
+
+    /*
+     * 作用：写入一个事件，只由HashMap的写线程调用
+     */
+    final void publish(Type type, K key, V oldValue, V newValue) {
+        long seq = tail;
+        ring[(int) seq & mask] = new ChangeEvent<>(seq, type, key, oldValue, newValue);
+        tail = ++seq;
+        for (FeedSubscription s : subscriptions)
+            s.published(seq);
+    }
+
+    /*
+     * 作用：立即调度所有有需求、有未投递事件的订阅者，不必等flusher，可以在任意线程调用
+     */
+    public void flush() {
+        for (FeedSubscription s : subscriptions)
+            s.flushPending();
+    }
+
+    /*
+     * 作用：订阅之后发生的变更，从当前序号开始投递
+     */
+    public void subscribe(Subscriber<? super K, ? super V> subscriber) {
+        Objects.requireNonNull(subscriber);
+        @SuppressWarnings("unchecked")
+        FeedSubscription s = new FeedSubscription((Subscriber<K,V>) subscriber, tail);
+        subscriptions.add(s);
+        subscriber.onSubscribe(s);
+        if (closed)
+            s.signal();
+    }
+
+    // 关闭变更流，订阅者收到剩余事件后收到onComplete
+    final void close() {
+        closed = true;
+        if (flusher != null)
+            flusher.shutdown();
+        for (FeedSubscription s : subscriptions)
+            s.signal();
+    }
+
+    final class FeedSubscription implements Subscription {
+        final Subscriber<K,V> subscriber;
+        volatile long cursor;                           // 下一个要投递的序号，只在drain中修改，写线程读取它计算积压
+        final AtomicLong demand = new AtomicLong();
+        // drain任务调度计数：从0变成1的线程负责提交drain，drain结束前把计数清零，保证同一时间只有一个drain在执行
+        final AtomicInteger wip = new AtomicInteger();
+        volatile boolean cancelled;
+
+        FeedSubscription(Subscriber<K,V> subscriber, long cursor) {
+            this.subscriber = subscriber;
+            this.cursor = cursor;
+        }
+
+        public void request(long n) {
+            if (n <= 0) {
+                cancel();
+                subscriber.onError(new IllegalArgumentException("non-positive request: " + n));
+                return;
+            }
+            for (long d, nd; ; ) {
+                d = demand.get();
+                nd = (d + n < 0) ? Long.MAX_VALUE : d + n;
+                if (demand.compareAndSet(d, nd))
+                    break;
+            }
+            signal();
+        }
+
+        public void cancel() {
+            cancelled = true;
+            subscriptions.remove(this);
+        }
+
+        /*
+         * 作用：写线程发布事件后调用，t是新的tail
+         *      没有需求时不调度，request会调度；drain正在执行时不调度，漏掉的事件由flusher或下一批补上
+         */
+        void published(long t) {
+            long d;
+            if ((d = demand.get()) == 0L)
+                return;
+            if (flusher == null)
+                signal();
+            else if (wip.get() == 0 && t - cursor >= Math.min(d, batchThreshold))
+                signal();
+        }
+
+        void flushPending() {
+            if (demand.get() > 0L && wip.get() == 0 && tail != cursor)
+                signal();
+        }
+
+        void signal() {
+            if (wip.getAndIncrement() == 0) {
+                try {
+                    executor.execute(this::drain);
+                } catch (Throwable ex) {
+                    cancel();
+                    subscriber.onError(ex);
+                }
+            }
+        }
+
+        private void drain() {
+            int missed = 1;
+            for (;;) {
+                if (cancelled)
+                    return;
+                long t = tail, c = cursor;
+                if (t - c > ring.length) {
+                    cancel();
+                    subscriber.onError(new FeedOverflowException(t - c - ring.length));
+                    return;
+                }
+                long d = demand.get();
+                int n = (int) Math.min(Math.min(t - c, d), maxBatch);
+                if (n > 0) {
+                    List<ChangeEvent<K,V>> batch = new ArrayList<>(n);
+                    for (int i = 0; i < n; ++i) {
+                        // 生产者先写槽位再推进tail，复制期间槽位可能已被新一圈的事件覆盖，按事件自带的序号逐个检查
+                        ChangeEvent<K,V> e = ring[(int) (c + i) & mask];
+                        if (e.sequence != c + i) {
+                            cancel();
+                            subscriber.onError(new FeedOverflowException(Math.max(1L, tail - c - ring.length)));
+                            return;
+                        }
+                        batch.add(e);
+                    }
+                    cursor = c + n;
+                    demand.addAndGet(-n);
+                    try {
+                        subscriber.onNext(batch);
+                    } catch (Throwable ex) {
+                        // 订阅者抛出异常后终止订阅，不再占用wip
+                        cancel();
+                        subscriber.onError(ex);
+                        return;
+                    }
+                    continue;
+                }
+                if (closed && c == t) {
+                    cancel();
+                    subscriber.onComplete();
+                    return;
+                }
+                if ((missed = wip.addAndGet(-missed)) == 0)
+                    return;
+            }
+        }
+    }
+}
@@ -0,0 +1,434 @@
+package com.lili.map;
+
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/*
+ * 保持插入顺序(或访问顺序)的紧凑Map，结构与CPython的compact dict相同：
+ *      entries  按插入顺序追加的平行数组hashes/keys/vals，下标即顺序
+ *      index    开放寻址的散列索引，槽位中存放entries的下标(int)，EMPTY为空槽，DUMMY为删除留下的占位
+ *
+ * 与LinkedHashMap相比每个条目没有Node对象，也没有before/after指针，只有一个int索引槽位和三个数组元素
+ * 遍历就是顺序扫描entries数组
+ *
+ * 删除：索引槽位改为DUMMY，entries中的位置留下空洞(keys[i] == null)，顺序不受影响
+ * 追加到entries末尾时数组已满就重建：去掉空洞把剩余条目压紧，存活条目超过一半时容量翻倍，
+ *      按hashes中保存的hash重新建索引，不调用hashCode，DUMMY也一并清除
+ * 访问顺序：accessOrder为true时get/put命中会把条目移到末尾(原位置留下空洞)，
+ *      配合removeEldestEntry可以实现LRU缓存
+ *
+ * 与HashMap一样不是线程安全的
+ */
+public class CompactLinkedHashMap<K,V> extends AbstractHashedMap<K,V> {
+
+    static final int EMPTY = -1;
+    static final int DUMMY = -2;
+    static final int MIN_INDEX_CAPACITY = 8;
+    static final int MAXIMUM_CAPACITY = 1 << 30;
+    private static final Object NULL_KEY = new Object();
+
+    int[] index;
+    int[] hashes;
+    Object[] keys;              // null表示空洞，null key用NULL_KEY代替
+    Object[] vals;
+    int used;                   // entries中已经使用的长度，包括空洞
+    int size;
+    int head;                   // 第一个存活条目的下标，删除后惰性前移
+    final boolean accessOrder;
+    transient int modCount;
+    private transient Set<Entry<K,V>> entrySet;
+
+    public CompactLinkedHashMap() {
+        this(0, false);
+    }
+    public CompactLinkedHashMap(int expectedSize) {
+        this(expectedSize, false);
+    }
+    public CompactLinkedHashMap(int expectedSize, boolean accessOrder) {
+        super(true);
+        if (expectedSize < 0)
+            throw new IllegalArgumentException("Illegal initial capacity: " + expectedSize);
+        this.accessOrder = accessOrder;
+        allocate(indexCapacityFor(expectedSize));
+    }
+    public CompactLinkedHashMap(java.util.Map<? extends K, ? extends V> m) {
+        this(m.size(), false);
+        putAll(m);
+    }
+
+    // entries容量是索引容量的3/4，保证索引中总有空槽
+    static int indexCapacityFor(int entries) {
+        long n = (long) entries + (entries >>> 1) + 1;
+        return (n >= MAXIMUM_CAPACITY) ? MAXIMUM_CAPACITY :
+                Math.max(MIN_INDEX_CAPACITY, HashMap.tableSizeFor((int) n));
+    }
+
+    private void allocate(int indexCapacity) {
+        int[] ix = new int[indexCapacity];
+        Arrays.fill(ix, EMPTY);
+        int n = indexCapacity - (indexCapacity >>> 2);
+        index = ix;
+        hashes = new int[n];
+        keys = new Object[n];
+        vals = new Object[n];
+    }
+
+    static Object maskNull(Object key) {
+        return (key == null) ? NULL_KEY : key;
+    }
+    @SuppressWarnings("unchecked")
+    static <K> K unmaskNull(Object key) {
+        return (key == NULL_KEY) ? null : (K) key;
+    }
+
+    /*
+     * 作用：返回key在index中的槽位，不存在时返回-1
+     */
+    final int findSlot(Object k, int h) {
+        int[] ix = index;
+        int mask = ix.length - 1;
+        for (int i = h & mask; ; i = (i + 1) & mask) {
+            int e = ix[i];
+            if (e == EMPTY)
+                return -1;
+            Object q;
+            if (e >= 0 && hashes[e] == h && ((q = keys[e]) == k || k.equals(q)))
+                return i;
+        }
+    }
+
+    // key在entries中的下标，不存在时返回-1
+    final int indexOf(Object key) {
+        Object k = maskNull(key);
+        int slot = findSlot(k, FlatHashMap.hash(key));
+        return (slot < 0) ? -1 : index[slot];
+    }
+
+    protected Entry<K,V> getEntry(Object key) {
+        int e = indexOf(key);
+        return (e < 0) ? null : new CompactEntry(e);
+    }
+
+    @SuppressWarnings("unchecked")
+    protected Entry<K,V> removeEntry(Object key) {
+        Object k = maskNull(key);
+        int slot = findSlot(k, FlatHashMap.hash(key));
+        if (slot < 0)
+            return null;
+        int e = index[slot];
+        Entry<K,V> removed = new AbstractMap.SimpleImmutableEntry<>(unmaskNull(keys[e]), (V) vals[e]);
+        removeAt(slot);
+        return removed;
+    }
+
+    public int size() {
+        return size;
+    }
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        Object k = maskNull(key);
+        int h = FlatHashMap.hash(key);
+        int slot = findSlot(k, h);
+        if (slot < 0)
+            return null;
+        int e = index[slot];
+        if (accessOrder)
+            e = moveToEnd(slot);
+        return (V) vals[e];
+    }
+
+    @SuppressWarnings("unchecked")
+    public V getOrDefault(Object key, V defaultValue) {
+        Object k = maskNull(key);
+        int slot = findSlot(k, FlatHashMap.hash(key));
+        if (slot < 0)
+            return defaultValue;
+        int e = index[slot];
+        if (accessOrder)
+            e = moveToEnd(slot);
+        return (V) vals[e];
+    }
+
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    public boolean containsValue(Object value) {
+        Object[] ks = keys, vs = vals;
+        for (int i = head; i < used; ++i) {
+            if (ks[i] != null && Objects.equals(vs[i], value))
+                return true;
+        }
+        return false;
+    }
+
+    public V put(K key, V value) {
+        return putVal(key, value, false);
+    }
+
+    public V putIfAbsent(K key, V value) {
+        return putVal(key, value, true);
+    }
+
+    @SuppressWarnings("unchecked")
+    final V putVal(K key, V value, boolean onlyIfAbsent) {
+        Object k = maskNull(key);
+        int h = FlatHashMap.hash(key);
+        int slot = findSlot(k, h);
+        if (slot >= 0) {
+            int e = index[slot];
+            if (accessOrder)
+                e = moveToEnd(slot);
+            V oldValue = (V) vals[e];
+            if (!onlyIfAbsent || oldValue == null) {
+                vals[e] = value;
+                modified();
+            }
+            return oldValue;
+        }
+        if (used == hashes.length)
+            rebuild();
+        int[] ix = index;
+        int mask = ix.length - 1;
+        int i = h & mask;
+        // key不存在，第一个空槽或DUMMY都可以放
+        while (ix[i] >= 0)
+            i = (i + 1) & mask;
+        int e = used++;
+        hashes[e] = h;
+        keys[e] = k;
+        vals[e] = value;
+        ix[i] = e;
+        ++size;
+        ++modCount;
+        modified();
+        Entry<K,V> eldest;
+        if (removeEldestEntry(eldest = eldest()))
+            remove(eldest.getKey());
+        return null;
+    }
+
+    /*
+     * 作用：把slot指向的条目移到entries末尾，原位置留下空洞，返回新下标
+     */
+    final int moveToEnd(int slot) {
+        int e = index[slot];
+        if (e == used - 1)
+            return e;
+        if (used == hashes.length) {
+            // 重建后下标和槽位都变了，重新查找；重建之后末尾一定有空位
+            Object k = keys[e];
+            int h = hashes[e];
+            rebuild();
+            slot = findSlot(k, h);
+            if ((e = index[slot]) == used - 1)
+                return e;
+        }
+        int n = used++;
+        hashes[n] = hashes[e];
+        keys[n] = keys[e];
+        vals[n] = vals[e];
+        keys[e] = null;
+        vals[e] = null;
+        index[slot] = n;
+        ++modCount;
+        return n;
+    }
+
+    /*
+     * 作用：删除slot指向的条目，entries中留下空洞，索引槽位改为DUMMY
+     */
+    final void removeAt(int slot) {
+        int e = index[slot];
+        index[slot] = DUMMY;
+        keys[e] = null;
+        vals[e] = null;
+        --size;
+        ++modCount;
+        modified();
+        if (size == 0)
+            clear();
+    }
+
+    /*
+     * 作用：压紧entries去掉空洞并重建索引
+     *      存活条目超过entries容量的一半时容量翻倍，否则只压紧
+     */
+    final void rebuild() {
+        int[] oldHashes = hashes;
+        Object[] oldKeys = keys, oldVals = vals;
+        int n = used, cap = index.length;
+        if (size >= (oldHashes.length >>> 1)) {
+            if (cap >= MAXIMUM_CAPACITY)
+                throw new IllegalStateException("Capacity exhausted");
+            cap <<= 1;
+        }
+        allocate(cap);
+        int[] ix = index, hs = hashes;
+        Object[] ks = keys, vs = vals;
+        int mask = ix.length - 1, j = 0;
+        for (int i = head; i < n; ++i) {
+            Object k = oldKeys[i];
+            if (k != null) {
+                int h = oldHashes[i];
+                hs[j] = h;
+                ks[j] = k;
+                vs[j] = oldVals[i];
+                int s = h & mask;
+                while (ix[s] != EMPTY)
+                    s = (s + 1) & mask;
+                ix[s] = j++;
+            }
+        }
+        used = j;
+        head = 0;
+    }
+
+    // 最早插入(或最久未访问)的条目，为空时返回null
+    final Entry<K,V> eldest() {
+        Object[] ks = keys;
+        int i = head;
+        while (i < used && ks[i] == null)
+            ++i;
+        head = i;
+        return (i < used) ? new CompactEntry(i) : null;
+    }
+
+    /*
+     * 插入新条目后调用，返回true时删除eldest，语义与LinkedHashMap.removeEldestEntry相同
+     */
+    protected boolean removeEldestEntry(Entry<K,V> eldest) {
+        return false;
+    }
+
+    public void clear() {
+        if (used > 0) {
+            Arrays.fill(index, EMPTY);
+            Arrays.fill(keys, 0, used, null);
+            Arrays.fill(vals, 0, used, null);
+            used = size = head = 0;
+        }
+        ++modCount;
+        modified();
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        Objects.requireNonNull(action);
+        Object[] ks = keys, vs = vals;
+        int mc = modCount;
+        for (int i = head, n = used; i < n && mc == modCount; ++i) {
+            Object k = ks[i];
+            if (k != null)
+                action.accept(unmaskNull(k), (V) vs[i]);
+        }
+        if (mc != modCount)
+            throw new ConcurrentModificationException();
+    }
+
+    public Set<Entry<K,V>> entrySet() {
+        Set<Entry<K,V>> es;
+        return (es = entrySet) == null ? (entrySet = new EntrySet()) : es;
+    }
+
+    final class EntrySet extends AbstractSet<Entry<K,V>> {
+        public final int size()                 { return size; }
+        public final void clear()               { CompactLinkedHashMap.this.clear(); }
+        public final Iterator<Entry<K,V>> iterator() {
+            return new EntryIterator();
+        }
+        public final boolean contains(Object o) {
+            if (!(o instanceof Entry))
+                return false;
+            Entry<?,?> e = (Entry<?,?>) o;
+            int i = indexOf(e.getKey());
+            return i >= 0 && Objects.equals(vals[i], e.getValue());
+        }
+        public final boolean remove(Object o) {
+            if (!(o instanceof Entry))
+                return false;
+            Entry<?,?> e = (Entry<?,?>) o;
+            Object key = e.getKey();
+            int i = indexOf(key);
+            if (i >= 0 && Objects.equals(vals[i], e.getValue())) {
+                CompactLinkedHashMap.this.remove(key);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    // 顺序扫描entries，删除只留下空洞，不影响后面的下标
+    final class EntryIterator implements Iterator<Entry<K,V>> {
+        int next = head;
+        int current = -1;
+        int expectedModCount = modCount;
+
+        public boolean hasNext() {
+            Object[] ks = keys;
+            while (next < used && ks[next] == null)
+                ++next;
+            return next < used;
+        }
+
+        public Entry<K,V> next() {
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return new CompactEntry(current = next++);
+        }
+
+        public void remove() {
+            if (current < 0)
+                throw new IllegalStateException();
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            Object k = keys[current];
+            removeAt(findSlot(k, hashes[current]));
+            current = -1;
+            expectedModCount = modCount;
+        }
+    }
+
+    // 指向entries下标的条目，在下一次重建或移动之前有效
+    final class CompactEntry implements Entry<K,V> {
+        final int offset;
+        final Object key;
+
+        CompactEntry(int offset) {
+            this.offset = offset;
+            this.key = keys[offset];
+        }
+
+        public K getKey()             { return unmaskNull(key); }
+        @SuppressWarnings("unchecked")
+        public V getValue()           { return (V) vals[offset]; }
+        @SuppressWarnings("unchecked")
+        public V setValue(V value) {
+            if (keys[offset] != key)
+                throw new ConcurrentModificationException();
+            V oldValue = (V) vals[offset];
+            vals[offset] = value;
+            modified();
+            return oldValue;
+        }
+        public String toString()      { return getKey() + "=" + getValue(); }
+
+        public int hashCode() {
+            return Objects.hashCode(getKey()) ^ Objects.hashCode(getValue());
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry))
+                return false;
+            Entry<?,?> e = (Entry<?,?>) o;
+            return Objects.equals(getKey(), e.getKey()) &&
+                    Objects.equals(getValue(), e.getValue());
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package com.lili.map;
+
+import java.util.*;
+
+/*
+ * value压缩存放的Map，适合value是较大的byte[]/String(例如JSON)、堆内存主要被value占用的场景
+ *
+ * 底层是HashMap<K,byte[]>，value经过Codec编码后用LzCompressor压缩：
+ *      存放格式：byte 类型 | varint 原始长度 | 数据，类型为RAW时数据就是编码后的字节
+ *      小于minCompressBytes或者压缩后没有变小的value按RAW存放
+ *      null value直接存null
+ * get时才解压；可选的解压缓存(按访问顺序淘汰的CompactLinkedHashMap)放在前面，热点value不重复解压
+ *      缓存中的value与调用方共享，调用方不应修改get返回的byte[]等可变对象
+ * stats()给出原始字节数与压缩后字节数、缓存命中和解压次数，用来权衡内存占用和get延迟
+ *
+ * put/remove需要返回旧value，旧value不在缓存中时要解压一次
+ * 与HashMap一样不是线程安全的
+ */
+public class CompressedValueMap<K,V> extends AbstractMap<K,V> {
+
+    static final byte RAW = 0;
+    static final byte LZ = 1;
+    static final int DEFAULT_MIN_COMPRESS_BYTES = 64;
+
+    private final HashMap<K,byte[]> table;
+    private final DurableHashMap.Codec<V> codec;
+    private final LzCompressor lz;
+    private final CompactLinkedHashMap<K,V> cache;
+    private int minCompressBytes = DEFAULT_MIN_COMPRESS_BYTES;
+    private byte[] buffer = new byte[256];
+    private transient Set<Entry<K,V>> entrySet;
+
+    // 统计
+    private long rawBytes;
+    private long storedBytes;
+    private long cacheHits;
+    private long decompressions;
+
+    public CompressedValueMap(DurableHashMap.Codec<V> codec) {
+        this(codec, 0, null);
+    }
+
+    /*
+     * 参数：cacheCapacity  解压缓存最多保存的value个数，0表示不使用缓存
+     *      dictionary     LzCompressor的预置字典，可以为null，见LzCompressor.rawDictionary
+     */
+    public CompressedValueMap(DurableHashMap.Codec<V> codec, int cacheCapacity, byte[] dictionary) {
+        if (cacheCapacity < 0)
+            throw new IllegalArgumentException("Illegal cache capacity: " + cacheCapacity);
+        this.codec = Objects.requireNonNull(codec);
+        this.table = new HashMap<>();
+        this.lz = new LzCompressor(dictionary);
+        this.cache = (cacheCapacity == 0) ? null : new DecodedCache<>(cacheCapacity);
+    }
+
+    // 小于bytes的value不压缩
+    public void setMinCompressBytes(int bytes) {
+        if (bytes < 0)
+            throw new IllegalArgumentException("Illegal min compress bytes: " + bytes);
+        minCompressBytes = bytes;
+    }
+
+    /*
+     * 作用：编码并压缩value
+     */
+    byte[] encode(V value) {
+        byte[] raw = codec.encode(value);
+        int n = raw.length;
+        if (n >= minCompressBytes) {
+            int max = 6 + LzCompressor.maxCompressedLength(n);
+            if (buffer.length < max)
+                buffer = new byte[Math.max(max, buffer.length << 1)];
+            byte[] b = buffer;
+            b[0] = LZ;
+            int p = writeVarint(n, b, 1);
+            int len = lz.compress(raw, n, b, p);
+            if (len < n)
+                return Arrays.copyOf(b, p + len);
+        }
+        byte[] b = new byte[1 + varintSize(n) + n];
+        b[0] = RAW;
+        System.arraycopy(raw, 0, b, writeVarint(n, b, 1), n);
+        return b;
+    }
+
+    V decode(byte[] stored) {
+        int n = 0, p = 1, shift = 0, b;
+        do {
+            n |= ((b = stored[p++]) & 0x7f) << shift;
+            shift += 7;
+        } while (b < 0);
+        byte[] raw;
+        if (stored[0] == RAW)
+            raw = Arrays.copyOfRange(stored, p, p + n);
+        else {
+            raw = lz.decompress(stored, p, stored.length - p, n);
+            ++decompressions;
+        }
+        return codec.decode(raw);
+    }
+
+    // 存放格式中的原始长度，不解压
+    static int rawLength(byte[] stored) {
+        int n = 0, p = 1, shift = 0, b;
+        do {
+            n |= ((b = stored[p++]) & 0x7f) << shift;
+            shift += 7;
+        } while (b < 0);
+        return n;
+    }
+
+    private static int writeVarint(int n, byte[] b, int p) {
+        for (; (n & ~0x7f) != 0; n >>>= 7)
+            b[p++] = (byte) (n | 0x80);
+        b[p++] = (byte) n;
+        return p;
+    }
+
+    private static int varintSize(int n) {
+        int size = 1;
+        for (; (n & ~0x7f) != 0; n >>>= 7)
+            ++size;
+        return size;
+    }
+
+    private void account(byte[] stored, int sign) {
+        if (stored != null) {
+            rawBytes += sign * (long) rawLength(stored);
+            storedBytes += sign * (long) stored.length;
+        }
+    }
+
+    // 先查缓存，没有时解压；cacheResult为false时(put/remove取旧value)不放入缓存
+    private V load(Object key, byte[] stored, boolean cacheResult) {
+        V v;
+        if (stored == null)
+            return null;
+        if (cache != null) {
+            if ((v = cache.get(key)) != null) {
+                ++cacheHits;
+                return v;
+            }
+            v = decode(stored);
+            if (cacheResult) {
+                @SuppressWarnings("unchecked") K k = (K) key;
+                cache.put(k, v);
+            }
+            return v;
+        }
+        return decode(stored);
+    }
+
+    public int size() {
+        return table.size();
+    }
+    public boolean isEmpty() {
+        return table.isEmpty();
+    }
+    public boolean containsKey(Object key) {
+        return table.containsKey(key);
+    }
+    public V get(Object key) {
+        return load(key, table.get(key), true);
+    }
+    public V put(K key, V value) {
+        byte[] stored = (value == null) ? null : encode(value);
+        byte[] old = table.get(key);
+        V oldValue = load(key, old, false);
+        table.put(key, stored);
+        account(old, -1);
+        account(stored, 1);
+        if (cache != null)
+            cache.remove(key);
+        return oldValue;
+    }
+    public V remove(Object key) {
+        if (!table.containsKey(key))
+            return null;
+        byte[] old = table.get(key);
+        V oldValue = load(key, old, false);
+        table.remove(key);
+        account(old, -1);
+        if (cache != null)
+            cache.remove(key);
+        return oldValue;
+    }
+    public void clear() {
+        table.clear();
+        if (cache != null)
+            cache.clear();
+        rawBytes = storedBytes = 0L;
+    }
+
+    public CompressionStats stats() {
+        return new CompressionStats(table.size(), rawBytes, storedBytes, cacheHits, decompressions,
+                (cache == null) ? 0 : cache.size());
+    }
+    public void resetStats() {
+        cacheHits = decompressions = 0L;
+    }
+
+    /*
+     * 压缩统计快照
+     *      rawBytes/storedBytes: 所有value编码后的字节数/实际存放的字节数(不含数组头)
+     *      cacheHits: get命中解压缓存的次数
+     *      decompressions: 实际解压的次数，每次解压都是一次get延迟的额外开销
+     */
+    public static final class CompressionStats {
+        public final int entries;
+        public final long rawBytes;
+        public final long storedBytes;
+        public final long cacheHits;
+        public final long decompressions;
+        public final int cachedValues;
+
+        CompressionStats(int entries, long rawBytes, long storedBytes, long cacheHits,
+                         long decompressions, int cachedValues) {
+            this.entries = entries;
+            this.rawBytes = rawBytes;
+            this.storedBytes = storedBytes;
+            this.cacheHits = cacheHits;
+            this.decompressions = decompressions;
+            this.cachedValues = cachedValues;
+        }
+
+        // 压缩比 原始字节数/存放字节数
+        public double ratio() {
+            return (storedBytes == 0L) ? 1.0 : (double) rawBytes / storedBytes;
+        }
+
+        public String toString() {
+            return "CompressionStats[entries=" + entries + ", raw=" + rawBytes + ", stored=" + storedBytes +
+                    ", ratio=" + String.format("%.2f", ratio()) + ", cacheHits=" + cacheHits +
+                    ", decompressions=" + decompressions + ", cached=" + cachedValues + "]";
+        }
+    }
+
+    public Set<Entry<K,V>> entrySet() {
+        Set<Entry<K,V>> es;
+        return (es = entrySet) == null ? (entrySet = new EntrySet()) : es;
+    }
+
+    final class EntrySet extends AbstractSet<Entry<K,V>> {
+        public final int size()                 { return table.size(); }
+        public final void clear()               { CompressedValueMap.this.clear(); }
+        public final Iterator<Entry<K,V>> iterator() {
+            return new EntryIterator();
+        }
+        public final boolean contains(Object o) {
+            if (!(o instanceof Entry))
+                return false;
+            Entry<?,?> e = (Entry<?,?>) o;
+            Object key = e.getKey();
+            return table.containsKey(key) && Objects.equals(get(key), e.getValue());
+        }
+        public final boolean remove(Object o) {
+            if (contains(o)) {
+                CompressedValueMap.this.remove(((Entry<?,?>) o).getKey());
+                return true;
+            }
+            return false;
+        }
+    }
+
+    // 遍历不经过缓存，value在getValue时才解压
+    final class EntryIterator implements Iterator<Entry<K,V>> {
+        final Iterator<Entry<K,byte[]>> it = table.entrySet().iterator();
+        CompressedEntry last;
+
+        public boolean hasNext() {
+            return it.hasNext();
+        }
+
+        public Entry<K,V> next() {
+            return last = new CompressedEntry(it.next());
+        }
+
+        public void remove() {
+            if (last == null)
+                throw new IllegalStateException();
+            it.remove();
+            account(last.node.getValue(), -1);
+            if (cache != null)
+                cache.remove(last.getKey());
+            last = null;
+        }
+    }
+
+    final class CompressedEntry implements Entry<K,V> {
+        final Entry<K,byte[]> node;
+
+        CompressedEntry(Entry<K,byte[]> node) {
+            this.node = node;
+        }
+
+        public K getKey()             { return node.getKey(); }
+        public V getValue() {
+            byte[] stored = node.getValue();
+            return (stored == null) ? null : decode(stored);
+        }
+        public String toString()      { return getKey() + "=" + getValue(); }
+
+        // 直接替换底层Node中的字节，不经过put，迭代过程中也可以安全调用
+        public V setValue(V value) {
+            V oldValue = getValue();
+            byte[] stored = (value == null) ? null : encode(value);
+            account(node.setValue(stored), -1);
+            account(stored, 1);
+            if (cache != null)
+                cache.remove(getKey());
+            return oldValue;
+        }
+
+        public int hashCode() {
+            return Objects.hashCode(getKey()) ^ Objects.hashCode(getValue());
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry))
+                return false;
+            Entry<?,?> e = (Entry<?,?>) o;
+            return Objects.equals(getKey(), e.getKey()) && Objects.equals(getValue(), e.getValue());
+        }
+    }
+
+    // 容量固定、按访问顺序淘汰最久未使用的解压缓存
+    static final class DecodedCache<K,V> extends CompactLinkedHashMap<K,V> {
+        private final int capacity;
+
+        DecodedCache(int capacity) {
+            super(capacity + 1, true);
+            this.capacity = capacity;
+        }
+
+        protected boolean removeEldestEntry(Entry<K,V> eldest) {
+            return size() > capacity;
+        }
+    }
+}
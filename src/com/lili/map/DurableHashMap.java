@@ -0,0 +1,511 @@
+package com.lili.map;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+/*
+ * 带预写日志(WAL)的持久化Map，数据目录下有两个文件：
+ *      snapshot  某一时刻整个table的快照，头部是MAGIC和映射个数
+ *      log       快照之后的put/remove记录，只追加
+ *
+ * 记录格式：int 负载长度 | int 负载的CRC32 | byte 类型 | int key长度 | key | (PUT时) int value长度 | value
+ *      长度为-1表示null
+ *
+ * 组提交：修改先在锁内作用到内存中的HashMap并编码进pending缓冲区，
+ *      pending达到syncBytes或者每隔syncIntervalMillis，才一次性write到FileChannel并force
+ *      两次fsync之间的所有修改共用一次fsync，崩溃时最多丢失最后一个间隔内的修改，调用sync()可以立即落盘
+ * 压缩：log超过compactionThreshold字节时把table写成新的snapshot(先写临时文件再原子rename)，然后把log截断为0
+ *      rename之后、截断之前崩溃也没关系，log中的记录按顺序重放到新快照上结果不变
+ * 恢复：先读snapshot头部的映射个数，再扫描一遍log统计PUT个数并找到最后一条完整记录，
+ *      按两者之和一次性分配table，重放过程中不会扩容；log尾部写了一半的记录被截掉
+ *
+ * 所有方法线程安全，内存中的修改在this上加锁，写文件在flushLock上加锁，顺序总是先flushLock后this
+ */
+public class DurableHashMap<K,V> implements Closeable {
+
+    /*
+     * key/value与字节数组之间的转换，encode不会收到null
+     */
+    public interface Codec<T> {
+        byte[] encode(T t);
+        T decode(byte[] bytes);
+
+        static Codec<String> utf8() {
+            return new Codec<String>() {
+                public byte[] encode(String s) {
+                    return s.getBytes(StandardCharsets.UTF_8);
+                }
+                public String decode(byte[] bytes) {
+                    return new String(bytes, StandardCharsets.UTF_8);
+                }
+            };
+        }
+
+        // byte[]原样存放，不复制
+        static Codec<byte[]> bytes() {
+            return new Codec<byte[]>() {
+                public byte[] encode(byte[] b) {
+                    return b;
+                }
+                public byte[] decode(byte[] bytes) {
+                    return bytes;
+                }
+            };
+        }
+
+        static <T extends Serializable> Codec<T> serializable() {
+            return new Codec<T>() {
+                public byte[] encode(T t) {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                        out.writeObject(t);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    return bytes.toByteArray();
+                }
+                @SuppressWarnings("unchecked")
+                public T decode(byte[] bytes) {
+                    try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                        return (T) in.readObject();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    } catch (ClassNotFoundException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            };
+        }
+    }
+
+    static final int MAGIC = 0x4C494D50;
+    static final byte PUT = 1;
+    static final byte REMOVE = 2;
+    // 写快照时每攒够这么多字节写一次文件
+    static final int SNAPSHOT_CHUNK = 1 << 16;
+
+    private final Path snapshotFile, logFile;
+    private final Codec<K> keyCodec;
+    private final Codec<V> valueCodec;
+    private final int syncBytes;
+    private volatile long compactionThreshold = 64L << 20;
+
+    private final HashMap<K,V> table;
+    private final FileChannel log;
+    private final Object flushLock = new Object();
+    private RecordBuffer pending = new RecordBuffer(), spare = new RecordBuffer();
+    private long logBytes;                  // 已经写入log的字节数，只在flushLock内访问
+    private IOException failure;            // 写日志失败后不再接受修改
+    private final ScheduledExecutorService flusher;
+    private boolean closed;
+
+    /*
+     * 作用：打开(或新建)dir下的持久化Map并恢复数据
+     * 参数：syncIntervalMillis  定时fsync的间隔，<= 0时只在pending达到syncBytes或调用sync()时落盘
+     *      syncBytes           pending达到这么多字节时由写线程立即落盘，0表示每次修改都fsync
+     */
+    public DurableHashMap(Path dir, Codec<K> keyCodec, Codec<V> valueCodec,
+                          long syncIntervalMillis, int syncBytes) throws IOException {
+        if (syncBytes < 0)
+            throw new IllegalArgumentException("Illegal sync bytes: " + syncBytes);
+        this.keyCodec = Objects.requireNonNull(keyCodec);
+        this.valueCodec = Objects.requireNonNull(valueCodec);
+        this.syncBytes = syncBytes;
+        Files.createDirectories(dir);
+        snapshotFile = dir.resolve("snapshot");
+        logFile = dir.resolve("log");
+        Files.deleteIfExists(dir.resolve("snapshot.tmp"));
+
+        int snapshotCount = 0;
+        if (Files.exists(snapshotFile)) {
+            try (DataInputStream in = open(snapshotFile)) {
+                if (in.readInt() != MAGIC)
+                    throw new StreamCorruptedException("Not a snapshot: " + snapshotFile);
+                snapshotCount = in.readInt();
+            }
+        }
+        log = FileChannel.open(logFile, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        boolean ok = false;
+        try {
+            // 第一遍扫描log：统计PUT个数，找到最后一条完整记录的结尾
+            Record r = new Record();
+            long end = 0L, logSize = Files.size(logFile);
+            int puts = 0;
+            try (DataInputStream in = open(logFile)) {
+                while (r.read(in, logSize - end)) {
+                    end += r.length;
+                    if (r.op == PUT)
+                        ++puts;
+                }
+            }
+            table = new HashMap<>((int) Math.min((float) (snapshotCount + (long) puts) /
+                    HashMap.DEFAULT_LOAD_FACTOR + 1.0F, HashMap.MAXIMUM_CAPACITY));
+            if (snapshotCount > 0) {
+                try (DataInputStream in = open(snapshotFile)) {
+                    in.readInt();
+                    in.readInt();
+                    long left = Files.size(snapshotFile) - 8;
+                    for (int i = 0; i < snapshotCount; ++i) {
+                        if (!r.read(in, left))
+                            throw new StreamCorruptedException("Truncated snapshot: " + snapshotFile);
+                        left -= r.length;
+                        apply(r);
+                    }
+                }
+            }
+            try (DataInputStream in = open(logFile)) {
+                for (long pos = 0L; pos < end; pos += r.length) {
+                    r.read(in, end - pos);
+                    apply(r);
+                }
+            }
+            log.truncate(end);
+            log.position(end);
+            logBytes = end;
+            ok = true;
+        } finally {
+            if (!ok)
+                log.close();
+        }
+
+        if (syncIntervalMillis > 0) {
+            flusher = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread t = new Thread(task, "DurableHashMap-flusher");
+                t.setDaemon(true);
+                return t;
+            });
+            flusher.scheduleWithFixedDelay(this::backgroundFlush,
+                    syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        else
+            flusher = null;
+    }
+
+    private static DataInputStream open(Path file) throws IOException {
+        return new DataInputStream(new BufferedInputStream(Files.newInputStream(file), SNAPSHOT_CHUNK));
+    }
+
+    // 重放时删除不缩容，避免预分配的table在中途被缩小
+    private void apply(Record r) {
+        K key = (r.key == null) ? null : keyCodec.decode(r.key);
+        if (r.op == PUT)
+            table.put(key, (r.value == null) ? null : valueCodec.decode(r.value));
+        else
+            table.removeNode(table.hash(key), key, null, false, false);
+    }
+
+    // log超过这么多字节时自动压缩，<= 0表示只在调用compact()时压缩
+    public void setCompactionThreshold(long bytes) {
+        compactionThreshold = bytes;
+    }
+
+    public synchronized V get(Object key) {
+        return table.get(key);
+    }
+    public synchronized boolean containsKey(Object key) {
+        return table.containsKey(key);
+    }
+    public synchronized int size() {
+        return table.size();
+    }
+    public synchronized boolean isEmpty() {
+        return table.isEmpty();
+    }
+
+    public V put(K key, V value) {
+        byte[] k = (key == null) ? null : keyCodec.encode(key);
+        byte[] v = (value == null) ? null : valueCodec.encode(value);
+        V oldValue;
+        boolean full;
+        synchronized (this) {
+            ensureWritable();
+            oldValue = table.put(key, value);
+            pending.append(PUT, k, v);
+            full = pending.size() >= syncBytes;
+        }
+        if (full)
+            sync();
+        return oldValue;
+    }
+
+    public V remove(Object key) {
+        V oldValue;
+        boolean full;
+        synchronized (this) {
+            ensureWritable();
+            int hash = table.hash(key);
+            HashMap.Node<K,V> e = table.removeNode(hash, key, null, false, true);
+            if (e == null)
+                return null;
+            oldValue = e.value;
+            pending.append(REMOVE, (e.key == null) ? null : keyCodec.encode(e.key), null);
+            full = pending.size() >= syncBytes;
+        }
+        if (full)
+            sync();
+        return oldValue;
+    }
+
+    // 遍历时持有锁，action中不能再修改这个Map
+    public synchronized void forEach(BiConsumer<? super K, ? super V> action) {
+        table.forEach(action);
+    }
+
+    private void ensureWritable() {
+        if (closed)
+            throw new IllegalStateException("closed");
+        if (failure != null)
+            throw new UncheckedIOException("log write failed", failure);
+    }
+
+    /*
+     * 作用：把pending中的记录写入log并fsync，返回后之前的所有修改都已落盘
+     *      多个写线程同时调用时，后进入flushLock的线程通常发现pending已经被前一个线程一起写掉了
+     */
+    public void sync() {
+        if (flush())
+            compact();
+    }
+
+    // 返回log是否已经超过压缩阈值
+    private boolean flush() {
+        synchronized (flushLock) {
+            RecordBuffer out;
+            synchronized (this) {
+                if (failure != null)
+                    throw new UncheckedIOException("log write failed", failure);
+                if (pending.size() == 0)
+                    return false;
+                out = pending;
+                pending = spare;
+                spare = out;
+            }
+            try {
+                ByteBuffer buf = out.asByteBuffer();
+                while (buf.hasRemaining())
+                    log.write(buf);
+                log.force(false);
+                logBytes += out.size();
+                out.reset();
+            } catch (IOException e) {
+                synchronized (this) {
+                    failure = e;
+                }
+                throw new UncheckedIOException(e);
+            }
+            long threshold = compactionThreshold;
+            return threshold > 0 && logBytes >= threshold;
+        }
+    }
+
+    private void backgroundFlush() {
+        try {
+            sync();
+        } catch (UncheckedIOException e) {
+            // failure已记录，之后的修改和sync()会抛出
+        }
+    }
+
+    /*
+     * 作用：把当前table写成新的snapshot，然后截断log
+     *      写快照期间持有this锁，读写都会暂停
+     */
+    public void compact() {
+        synchronized (flushLock) {
+            flush();
+            Path tmp = snapshotFile.resolveSibling("snapshot.tmp");
+            synchronized (this) {
+                ensureWritable();
+                try {
+                    try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                        RecordBuffer buf = new RecordBuffer();
+                        DataOutputStream header = new DataOutputStream(buf);
+                        header.writeInt(MAGIC);
+                        header.writeInt(table.size());
+                        HashMap.Node<K,V>[] tab;
+                        if ((tab = table.table) != null) {
+                            // 树形桶的TreeNode同样由next串起来
+                            for (HashMap.Node<K,V> b : tab) {
+                                for (HashMap.Node<K,V> e = b; e != null; e = e.next) {
+                                    buf.append(PUT, (e.key == null) ? null : keyCodec.encode(e.key),
+                                            (e.value == null) ? null : valueCodec.encode(e.value));
+                                    if (buf.size() >= SNAPSHOT_CHUNK)
+                                        buf.drainTo(out);
+                                }
+                            }
+                        }
+                        buf.drainTo(out);
+                        out.force(true);
+                    }
+                    Files.move(tmp, snapshotFile, StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                    // 改名要先落盘再截断log，否则崩溃后可能是旧snapshot配空log，上次压缩以来的记录全部丢失
+                    forceDirectory(snapshotFile.toAbsolutePath().getParent());
+                    log.truncate(0L);
+                    log.position(0L);
+                    log.force(true);
+                    logBytes = 0L;
+                } catch (IOException e) {
+                    failure = e;
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+    }
+
+    // 把目录项(文件的创建、改名)刷到磁盘
+    static void forceDirectory(Path dir) throws IOException {
+        try (FileChannel d = FileChannel.open(dir, StandardOpenOption.READ)) {
+            d.force(true);
+        }
+    }
+
+    // 落盘后关闭，关闭后修改抛出IllegalStateException，读取仍然可用
+    public void close() throws IOException {
+        if (flusher != null)
+            flusher.shutdown();
+        synchronized (flushLock) {
+            synchronized (this) {
+                if (closed)
+                    return;
+            }
+            try {
+                flush();
+            } catch (UncheckedIOException e) {
+                log.close();
+                throw e.getCause();
+            }
+            synchronized (this) {
+                closed = true;
+            }
+            log.close();
+        }
+    }
+
+    /*
+     * 待写入的记录，直接暴露ByteArrayOutputStream的内部数组，写文件时不复制
+     */
+    static final class RecordBuffer extends ByteArrayOutputStream {
+        private final CRC32 crc = new CRC32();
+
+        RecordBuffer() {
+            super(256);
+        }
+
+        void append(byte op, byte[] key, byte[] value) {
+            int start = count;
+            writeInt(0);
+            writeInt(0);
+            write(op);
+            writeField(key);
+            if (op == PUT)
+                writeField(value);
+            int length = count - start - 8;
+            crc.reset();
+            crc.update(buf, start + 8, length);
+            putInt(start, length);
+            putInt(start + 4, (int) crc.getValue());
+        }
+
+        private void writeField(byte[] b) {
+            if (b == null)
+                writeInt(-1);
+            else {
+                writeInt(b.length);
+                write(b, 0, b.length);
+            }
+        }
+
+        private void writeInt(int v) {
+            write(v >>> 24);
+            write(v >>> 16);
+            write(v >>> 8);
+            write(v);
+        }
+
+        private void putInt(int pos, int v) {
+            buf[pos] = (byte) (v >>> 24);
+            buf[pos + 1] = (byte) (v >>> 16);
+            buf[pos + 2] = (byte) (v >>> 8);
+            buf[pos + 3] = (byte) v;
+        }
+
+        ByteBuffer asByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+
+        void drainTo(FileChannel out) throws IOException {
+            ByteBuffer b = asByteBuffer();
+            while (b.hasRemaining())
+                out.write(b);
+            reset();
+        }
+    }
+
+    /*
+     * 读取时复用的记录，read返回false表示到达结尾或者遇到不完整/校验失败的记录
+     * remaining是文件中剩余的字节数，长度字段超过它时当作写了一半的尾部，不按损坏的长度分配内存
+     */
+    static final class Record {
+        private final CRC32 crc = new CRC32();
+        private byte[] payload = new byte[256];
+        int length;             // 包括8字节头部的总长度
+        byte op;
+        byte[] key, value;
+
+        boolean read(DataInputStream in, long remaining) throws IOException {
+            int n, sum;
+            try {
+                n = in.readInt();
+                sum = in.readInt();
+                if (n < 5 || n > remaining - 8)
+                    return false;
+                if (n > payload.length)
+                    payload = new byte[Math.max(n, payload.length << 1)];
+                in.readFully(payload, 0, n);
+            } catch (EOFException e) {
+                return false;
+            }
+            crc.reset();
+            crc.update(payload, 0, n);
+            if ((int) crc.getValue() != sum)
+                return false;
+            ByteBuffer b = ByteBuffer.wrap(payload, 0, n);
+            op = b.get();
+            if (op != PUT && op != REMOVE)
+                return false;
+            try {
+                key = bytes(b);
+                value = (op == PUT) ? bytes(b) : null;
+            } catch (BufferUnderflowException e) {
+                return false;
+            }
+            length = n + 8;
+            return true;
+        }
+
+        private static byte[] bytes(ByteBuffer b) {
+            int n = b.getInt();
+            if (n < 0)
+                return null;
+            byte[] a = new byte[n];
+            b.get(a);
+            return a;
+        }
+    }
+}
@@ -0,0 +1,387 @@
+package com.lili.map;
+
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/*
+ * 开放寻址的Map，用三个平行数组代替Node链表：
+ *      hashes  每个槽位key的完整32位hash，0表示空槽
+ *      keys    key，null key用NULL_KEY代替
+ *      vals    value
+ *
+ * 查找只在hashes中线性探测，hash不相等的槽位不会访问keys，一条缓存行可以比较16个hash，
+ * 只有hash完全相等时才读取key调用equals。HashMap.getNode要依次访问table[i]、Node对象、key三处内存，
+ * 这里命中时通常是hashes[i]和keys[i]两处，未命中的比较不产生额外的指针跳转
+ *
+ * 存入hashes的是乘法扰动后的hash，扰动是双射，不丢失信息；结果恰好为0时换成ZERO_HASH
+ * 扩容时直接用hashes中保存的值重新定位，不再调用hashCode
+ * 删除使用backward shift，把后面同一簇中的元素前移，不留墓碑
+ *
+ * 与HashMap一样不是线程安全的
+ */
+public class FlatHashMap<K,V> extends AbstractHashedMap<K,V> {
+
+    static final int DEFAULT_CAPACITY = 16;
+    static final int MAXIMUM_CAPACITY = 1 << 30;
+    // 线性探测在装载因子较高时簇会迅速变长，固定为0.75
+    static final float LOAD_FACTOR = 0.75f;
+    static final int ZERO_HASH = 0x9E3779B9;
+    private static final Object NULL_KEY = new Object();
+
+    int[] hashes;
+    Object[] keys;
+    Object[] vals;
+    int size;
+    int threshold;
+    transient int modCount;
+    private transient Set<Entry<K,V>> entrySet;
+
+    public FlatHashMap() {
+        this(DEFAULT_CAPACITY);
+    }
+    // expectedSize个映射不会触发扩容
+    public FlatHashMap(int expectedSize) {
+        super(true);
+        if (expectedSize < 0)
+            throw new IllegalArgumentException("Illegal initial capacity: " + expectedSize);
+        allocate(HashMap.tableSizeFor(Math.max((int) Math.min(expectedSize / LOAD_FACTOR + 1.0F,
+                MAXIMUM_CAPACITY), 2)));
+    }
+    public FlatHashMap(java.util.Map<? extends K, ? extends V> m) {
+        this(m.size());
+        putAll(m);
+    }
+
+    private void allocate(int n) {
+        hashes = new int[n];
+        keys = new Object[n];
+        vals = new Object[n];
+        threshold = (n == MAXIMUM_CAPACITY) ? n - 1 : (int) (n * LOAD_FACTOR);
+    }
+
+    static int hash(Object key) {
+        int h;
+        if (key == null)
+            return ZERO_HASH;
+        h = key.hashCode() * 0x9E3779B9;
+        h ^= h >>> 16;
+        return (h == 0) ? ZERO_HASH : h;
+    }
+
+    static Object maskNull(Object key) {
+        return (key == null) ? NULL_KEY : key;
+    }
+    @SuppressWarnings("unchecked")
+    static <K> K unmaskNull(Object key) {
+        return (key == NULL_KEY) ? null : (K) key;
+    }
+
+    /*
+     * 作用：返回key所在槽位，不存在时返回-1
+     */
+    final int indexOf(Object key) {
+        int h = hash(key);
+        Object k = maskNull(key);
+        int[] hs = hashes;
+        int mask = hs.length - 1;
+        for (int i = h & mask, sh; (sh = hs[i]) != 0; i = (i + 1) & mask) {
+            Object q;
+            if (sh == h && ((q = keys[i]) == k || k.equals(q)))
+                return i;
+        }
+        return -1;
+    }
+
+    protected Entry<K,V> getEntry(Object key) {
+        int i = indexOf(key);
+        return (i < 0) ? null : new FlatEntry(i);
+    }
+
+    @SuppressWarnings("unchecked")
+    protected Entry<K,V> removeEntry(Object key) {
+        int i = indexOf(key);
+        if (i < 0)
+            return null;
+        Entry<K,V> e = new AbstractMap.SimpleImmutableEntry<>(unmaskNull(keys[i]), (V) vals[i]);
+        removeAt(i);
+        return e;
+    }
+
+    public int size() {
+        return size;
+    }
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        int i = indexOf(key);
+        return (i < 0) ? null : (V) vals[i];
+    }
+
+    @SuppressWarnings("unchecked")
+    public V getOrDefault(Object key, V defaultValue) {
+        int i = indexOf(key);
+        return (i < 0) ? defaultValue : (V) vals[i];
+    }
+
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    public boolean containsValue(Object value) {
+        int[] hs = hashes;
+        Object[] vs = vals;
+        for (int i = 0; i < hs.length; ++i) {
+            if (hs[i] != 0 && Objects.equals(vs[i], value))
+                return true;
+        }
+        return false;
+    }
+
+    public V put(K key, V value) {
+        return putVal(key, value, false);
+    }
+
+    public V putIfAbsent(K key, V value) {
+        return putVal(key, value, true);
+    }
+
+    @SuppressWarnings("unchecked")
+    final V putVal(K key, V value, boolean onlyIfAbsent) {
+        int h = hash(key);
+        Object k = maskNull(key);
+        int[] hs = hashes;
+        int mask = hs.length - 1;
+        int i = h & mask;
+        for (int sh; (sh = hs[i]) != 0; i = (i + 1) & mask) {
+            Object q;
+            if (sh == h && ((q = keys[i]) == k || k.equals(q))) {
+                V oldValue = (V) vals[i];
+                if (!onlyIfAbsent || oldValue == null) {
+                    vals[i] = value;
+                    modified();
+                }
+                return oldValue;
+            }
+        }
+        hs[i] = h;
+        keys[i] = k;
+        vals[i] = value;
+        ++modCount;
+        modified();
+        if (++size > threshold)
+            resize();
+        return null;
+    }
+
+    /*
+     * 作用：容量翻倍，按保存的hash重新放置，不调用hashCode和equals
+     */
+    final void resize() {
+        int[] oldHashes = hashes;
+        Object[] oldKeys = keys, oldVals = vals;
+        int n = oldHashes.length;
+        if (n >= MAXIMUM_CAPACITY) {
+            if (size >= n - 1)
+                throw new IllegalStateException("Capacity exhausted");
+            return;
+        }
+        allocate(n << 1);
+        int[] hs = hashes;
+        Object[] ks = keys, vs = vals;
+        int mask = hs.length - 1;
+        for (int j = 0; j < n; ++j) {
+            int h = oldHashes[j];
+            if (h != 0) {
+                int i = h & mask;
+                while (hs[i] != 0)
+                    i = (i + 1) & mask;
+                hs[i] = h;
+                ks[i] = oldKeys[j];
+                vs[i] = oldVals[j];
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(Object key) {
+        int i = indexOf(key);
+        if (i < 0)
+            return null;
+        V oldValue = (V) vals[i];
+        removeAt(i);
+        return oldValue;
+    }
+
+    /*
+     * 作用：删除槽位i，把同一簇中后面的元素前移填补空位
+     *      元素j的理想位置home不在(i, j]区间内时，说明它可以前移到i
+     */
+    final void removeAt(int i) {
+        int[] hs = hashes;
+        Object[] ks = keys, vs = vals;
+        int mask = hs.length - 1;
+        for (int j = i; ; ) {
+            j = (j + 1) & mask;
+            int h = hs[j];
+            if (h == 0)
+                break;
+            int home = h & mask;
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                hs[i] = h;
+                ks[i] = ks[j];
+                vs[i] = vs[j];
+                i = j;
+            }
+        }
+        hs[i] = 0;
+        ks[i] = null;
+        vs[i] = null;
+        ++modCount;
+        --size;
+        modified();
+    }
+
+    public void clear() {
+        if (size > 0) {
+            Arrays.fill(hashes, 0);
+            Arrays.fill(keys, null);
+            Arrays.fill(vals, null);
+            size = 0;
+        }
+        ++modCount;
+        modified();
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        Objects.requireNonNull(action);
+        int[] hs = hashes;
+        Object[] ks = keys, vs = vals;
+        int mc = modCount;
+        for (int i = 0; i < hs.length && mc == modCount; ++i) {
+            if (hs[i] != 0)
+                action.accept(unmaskNull(ks[i]), (V) vs[i]);
+        }
+        if (mc != modCount)
+            throw new ConcurrentModificationException();
+    }
+
+    public Set<Entry<K,V>> entrySet() {
+        Set<Entry<K,V>> es;
+        return (es = entrySet) == null ? (entrySet = new EntrySet()) : es;
+    }
+
+    final class EntrySet extends AbstractSet<Entry<K,V>> {
+        public final int size()                 { return size; }
+        public final void clear()               { FlatHashMap.this.clear(); }
+        public final Iterator<Entry<K,V>> iterator() {
+            return new EntryIterator();
+        }
+        public final boolean contains(Object o) {
+            if (!(o instanceof Entry))
+                return false;
+            Entry<?,?> e = (Entry<?,?>) o;
+            int i = indexOf(e.getKey());
+            return i >= 0 && Objects.equals(vals[i], e.getValue());
+        }
+        public final boolean remove(Object o) {
+            if (!(o instanceof Entry))
+                return false;
+            Entry<?,?> e = (Entry<?,?>) o;
+            int i = indexOf(e.getKey());
+            if (i >= 0 && Objects.equals(vals[i], e.getValue())) {
+                removeAt(i);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /*
+     * 从某个空槽的下一个位置开始循环遍历一圈。簇中不含空槽，所以每个簇在遍历顺序中都是连续的，
+     * removeAt前移的元素总是来自遍历顺序中更靠后的位置；删除后当前槽位被填上时退回一步重新访问它
+     */
+    final class EntryIterator implements Iterator<Entry<K,V>> {
+        final int base;
+        int pos;                // 下一个要检查的位置(相对base)
+        int current = -1;       // next返回的槽位
+        int expectedModCount = modCount;
+
+        EntryIterator() {
+            int[] hs = hashes;
+            int e = 0;
+            while (hs[e] != 0)
+                ++e;
+            base = e + 1;
+        }
+
+        public boolean hasNext() {
+            int[] hs = hashes;
+            int mask = hs.length - 1;
+            while (pos < hs.length && hs[(base + pos) & mask] == 0)
+                ++pos;
+            return pos < hs.length;
+        }
+
+        public Entry<K,V> next() {
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            if (!hasNext())
+                throw new NoSuchElementException();
+            current = (base + pos++) & (hashes.length - 1);
+            return new FlatEntry(current);
+        }
+
+        public void remove() {
+            if (current < 0)
+                throw new IllegalStateException();
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            removeAt(current);
+            if (hashes[current] != 0)
+                --pos;
+            current = -1;
+            expectedModCount = modCount;
+        }
+    }
+
+    // 指向槽位的条目，在下一次结构性修改之前有效
+    final class FlatEntry implements Entry<K,V> {
+        final int index;
+        final Object key;
+
+        FlatEntry(int index) {
+            this.index = index;
+            this.key = keys[index];
+        }
+
+        public K getKey()             { return unmaskNull(key); }
+        @SuppressWarnings("unchecked")
+        public V getValue()           { return (V) vals[index]; }
+        @SuppressWarnings("unchecked")
+        public V setValue(V value) {
+            if (keys[index] != key)
+                throw new ConcurrentModificationException();
+            V oldValue = (V) vals[index];
+            vals[index] = value;
+            modified();
+            return oldValue;
+        }
+        public String toString()      { return getKey() + "=" + getValue(); }
+
+        public int hashCode() {
+            return Objects.hashCode(getKey()) ^ Objects.hashCode(getValue());
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry))
+                return false;
+            Entry<?,?> e = (Entry<?,?>) o;
+            return Objects.equals(getKey(), e.getKey()) &&
+                    Objects.equals(getValue(), e.getValue());
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package com.lili.map;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ObjLongConsumer;
+
+/*
+ * 线程安全的计数Map，代替对整个HashMap加锁后调用merge(k, 1L, Long::sum)
+ *
+ * 冷key：按hash的高位分到多个Stripe，每个Stripe是一个加锁的HashMap<K, Cell>，Cell中是原始类型long计数，
+ *       锁内走HashMap单线程的快速路径(getNode命中直接加，未命中putVal)，不装箱
+ * 热key：某个key在加锁时多次遇到竞争(tryLock失败)后被提升为LongAdder，放入hotKeys，
+ *       之后的累加完全不加锁，由LongAdder在多个Cell之间分散竞争
+ *
+ * 提升在Stripe锁内完成：先放入hotKeys再从Stripe中删除，其他线程拿到锁后发现key不在Stripe中时会重新检查hotKeys
+ */
+public class HashCounter<K> {
+
+    // 一个key在锁竞争中累计这么多次后提升为热key
+    static final int HOT_THRESHOLD = 8;
+
+    private final Stripe<K>[] stripes;
+    // stripe下标取乘法扰动后hash的高位(右移stripeShift)，低位留给Stripe内部HashMap路由
+    private final int stripeShift;
+    // ConcurrentHashMap不接受null，null key在hotKeys中用NULL_KEY代替，见mask/unmask
+    private final ConcurrentHashMap<Object,LongAdder> hotKeys = new ConcurrentHashMap<>();
+    // 出现过热key后置为true 之前的累加跳过对hotKeys的查找
+    private volatile boolean hasHotKeys;
+
+    public HashCounter() {
+        this(Runtime.getRuntime().availableProcessors() * 4);
+    }
+    @SuppressWarnings({"rawtypes","unchecked"})
+    public HashCounter(int concurrencyLevel) {
+        if (concurrencyLevel <= 0)
+            throw new IllegalArgumentException("Illegal concurrency level: " +
+                    concurrencyLevel);
+        int n = HashMap.tableSizeFor(concurrencyLevel);
+        stripes = (Stripe<K>[]) new Stripe[n];
+        for (int i = 0; i < n; ++i)
+            stripes[i] = new Stripe<>();
+        stripeShift = 32 - Integer.numberOfTrailingZeros(n);
+    }
+
+    static final Object NULL_KEY = new Object();
+
+    static Object mask(Object key) {
+        return (key == null) ? NULL_KEY : key;
+    }
+    @SuppressWarnings("unchecked")
+    static <K> K unmask(Object key) {
+        return (key == NULL_KEY) ? null : (K) key;
+    }
+
+    private Stripe<K> stripeFor(Object key) {
+        int h = (key == null) ? 0 : key.hashCode() * 0x9E3779B9;
+        return stripes.length == 1 ? stripes[0] : stripes[h >>> stripeShift];
+    }
+
+    public void increment(K key) {
+        add(key, 1L);
+    }
+    public void decrement(K key) {
+        add(key, -1L);
+    }
+
+    public void add(K key, long delta) {
+        LongAdder hot;
+        if (hasHotKeys && (hot = hotKeys.get(mask(key))) != null) {
+            hot.add(delta);
+            return;
+        }
+        Stripe<K> s = stripeFor(key);
+        boolean contended = false;
+        if (!s.tryLock()) {
+            contended = true;
+            s.lock();
+        }
+        try {
+            HashMap<K,Cell> map = s.map;
+            int hash = map.hash(key);
+            HashMap.Node<K,Cell> e = map.getNode(hash, key);
+            if (e == null) {
+                // 拿锁之前key可能刚被其他线程提升为热key
+                if (hasHotKeys && (hot = hotKeys.get(mask(key))) != null) {
+                    hot.add(delta);
+                    return;
+                }
+                map.putVal(hash, key, new Cell(delta), false, true);
+                return;
+            }
+            Cell c = e.value;
+            c.value += delta;
+            if (contended && ++c.contention >= HOT_THRESHOLD) {
+                LongAdder adder = new LongAdder();
+                adder.add(c.value);
+                hotKeys.put(mask(key), adder);
+                hasHotKeys = true;
+                map.removeNode(hash, key, null, false, true);
+            }
+        } finally {
+            s.unlock();
+        }
+    }
+
+    // key当前的计数 不存在时为0
+    public long get(Object key) {
+        LongAdder hot;
+        if (hasHotKeys && (hot = hotKeys.get(mask(key))) != null)
+            return hot.sum();
+        Stripe<K> s = stripeFor(key);
+        s.lock();
+        try {
+            Cell c = s.map.get(key);
+            if (c != null)
+                return c.value;
+        } finally {
+            s.unlock();
+        }
+        return (hasHotKeys && (hot = hotKeys.get(mask(key))) != null) ? hot.sum() : 0L;
+    }
+
+    /*
+     * 作用：返回key当前计数并清零。热key保留LongAdder只清零，冷key直接删除
+     *      热key的清零与并发的add之间不是原子的，语义与LongAdder.sumThenReset相同
+     */
+    public long sumThenReset(Object key) {
+        LongAdder hot;
+        if (hasHotKeys && (hot = hotKeys.get(mask(key))) != null)
+            return hot.sumThenReset();
+        Stripe<K> s = stripeFor(key);
+        s.lock();
+        try {
+            Cell c = s.map.remove(key);
+            if (c != null)
+                return c.value;
+        } finally {
+            s.unlock();
+        }
+        return (hasHotKeys && (hot = hotKeys.get(mask(key))) != null) ? hot.sumThenReset() : 0L;
+    }
+
+    /*
+     * 作用：删除key 返回删除前的计数
+     *      热key上的remove与并发的add不是线性一致的：热key的add不加锁，已经拿到LongAdder的add可能在它从hotKeys
+     *      删除之后才写入。删除后清零一次，稍后再取一次，这期间晚到的增量按普通add重新计入(相当于发生在remove之后)，
+     *      再晚的写入会丢失，与sumThenReset的语义相同
+     *      最后一个热key被删除后关闭hasHotKeys，add恢复不查hotKeys的快速路径
+     */
+    public long remove(Object key) {
+        Stripe<K> s = stripeFor(key);
+        s.lock();
+        try {
+            Cell c = s.map.remove(key);
+            if (c != null)
+                return c.value;
+        } finally {
+            s.unlock();
+        }
+        LongAdder hot;
+        if (!hasHotKeys || (hot = hotKeys.remove(mask(key))) == null)
+            return 0L;
+        long sum = hot.sumThenReset();
+        if (hotKeys.isEmpty())
+            clearHotFlag();
+        Thread.yield();
+        long late = hot.sumThenReset();
+        if (late != 0L) {
+            @SuppressWarnings("unchecked") K k = (K) key;
+            add(k, late);
+        }
+        return sum;
+    }
+
+    /*
+     * 作用：hotKeys为空时把hasHotKeys置回false
+     *      提升热key在Stripe锁内完成，这里拿住所有Stripe锁后再检查，不会与提升交错，
+     *      否则可能在刚提升的热key存在时关掉标志，add会在Stripe中另建一份冷计数
+     */
+    private void clearHotFlag() {
+        for (Stripe<K> s : stripes)
+            s.lock();
+        try {
+            if (hotKeys.isEmpty())
+                hasHotKeys = false;
+        } finally {
+            for (Stripe<K> s : stripes)
+                s.unlock();
+        }
+    }
+
+    // 所有key的计数之和
+    public long sum() {
+        long sum = 0L;
+        for (Stripe<K> s : stripes) {
+            s.lock();
+            try {
+                for (Cell c : s.map.values())
+                    sum += c.value;
+            } finally {
+                s.unlock();
+            }
+        }
+        for (LongAdder a : hotKeys.values())
+            sum += a.sum();
+        return sum;
+    }
+
+    public int size() {
+        int n = hotKeys.size();
+        for (Stripe<K> s : stripes) {
+            s.lock();
+            try {
+                n += s.map.size();
+            } finally {
+                s.unlock();
+            }
+        }
+        return n;
+    }
+
+    public void clear() {
+        for (Stripe<K> s : stripes)
+            s.lock();
+        try {
+            for (Stripe<K> s : stripes)
+                s.map.clear();
+            hotKeys.clear();
+            hasHotKeys = false;
+        } finally {
+            for (Stripe<K> s : stripes)
+                s.unlock();
+        }
+    }
+
+    /*
+     * 作用：逐个Stripe加锁遍历，不是整个计数器的一致性快照
+     */
+    public void forEach(ObjLongConsumer<? super K> action) {
+        Objects.requireNonNull(action);
+        for (Stripe<K> s : stripes) {
+            s.lock();
+            try {
+                s.map.forEach((k, c) -> action.accept(k, c.value));
+            } finally {
+                s.unlock();
+            }
+        }
+        hotKeys.forEach((k, a) -> action.accept(unmask(k), a.sum()));
+    }
+
+    /*
+     * 作用：返回计数最大的k个key，按计数从大到小排序
+     *      遍历时用大小为k的最小堆，只保留当前最大的k个
+     */
+    public List<java.util.Map.Entry<K,Long>> topK(int k) {
+        if (k <= 0)
+            return Collections.emptyList();
+        PriorityQueue<java.util.Map.Entry<K,Long>> heap =
+                new PriorityQueue<>(k, java.util.Map.Entry.comparingByValue());
+        forEach((key, count) -> {
+            if (heap.size() < k)
+                heap.add(new AbstractMap.SimpleImmutableEntry<>(key, count));
+            else if (heap.peek().getValue() < count) {
+                heap.poll();
+                heap.add(new AbstractMap.SimpleImmutableEntry<>(key, count));
+            }
+        });
+        List<java.util.Map.Entry<K,Long>> result = new ArrayList<>(heap);
+        result.sort(java.util.Map.Entry.<K,Long>comparingByValue().reversed());
+        return result;
+    }
+
+    static final class Stripe<K> extends ReentrantLock {
+        private static final long serialVersionUID = 1L;
+        final HashMap<K,Cell> map = new HashMap<>();
+    }
+
+    // 冷key的计数 只在Stripe锁内读写
+    static final class Cell {
+        long value;
+        int contention;     // 加锁时遇到竞争的次数
+
+        Cell(long value) {
+            this.value = value;
+        }
+    }
+}
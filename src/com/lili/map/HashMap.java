@@ -33,12 +33,15 @@ import java.io.Serializable;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.AbstractMap;
 import java.util.Map;
 import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Predicate;
 
 public class HashMap<K,V> extends AbstractMap<K,V>
         implements java.util.Map<K,V>, Cloneable, Serializable {
@@ -72,6 +75,28 @@ public class HashMap<K,V> extends AbstractMap<K,V>
     // 负载因子 threshold = loadFactor*capacity  capacity是hash表中Node数组长度
     final float loadFactor;
 
+    // 按实例配置的树化参数 缺省值即上面的三个常量 见setTreeifyThresholds
+    transient int treeifyThreshold = TREEIFY_THRESHOLD;
+    transient int untreeifyThreshold = UNTREEIFY_THRESHOLD;
+    transient int minTreeifyCapacity = MIN_TREEIFY_CAPACITY;
+    // 自适应冲突策略 见treeifyBin
+    transient boolean adaptiveCollisions;
+    // 不为0时hash(key)使用带种子的强扰动函数 见rehash
+    transient int hashSeed;
+    // 冲突统计 见collisionStats
+    transient int longBins, treeifications, collisionResizes, rehashes;
+    // 变更流 为null时不产生事件 见enableChangeFeed
+    transient ChangeFeed<K,V> changeFeed;
+    // 增量维护的hashCode，trackHashCode为true时等于所有Node.hashCode()之和 见setIncrementalHashCode
+    transient boolean trackHashCode;
+    transient int mapHash;
+    // 挡在getNode前面的Bloom过滤器 为null时不使用 见enableBloomFilter
+    transient BloomFilter bloom;
+    transient int bloomBitsPerEntry;
+    transient int bloomRemovals;        // 上次重建之后删除的元素个数
+    // 构造时指定的容量(tableSizeFor之后)，removeNode自动缩容不低于它，trimToSize不受限制，反序列化后为0
+    transient int initialCapacity;
+
 
     /*  构造方法源码分析   */
     public HashMap(int initialCapacity, float loadFactor) {
@@ -91,6 +116,7 @@ public class HashMap<K,V> extends AbstractMap<K,V>
         this.loadFactor = loadFactor;
         // hash表中Node数组的长度必须是2^x，但传入的initialCapacity不一定是2^x 因此需要tableSizeFor去处理
         this.threshold = tableSizeFor(initialCapacity);
+        this.initialCapacity = this.threshold;
     }
     public HashMap(int initialCapacity) {
         this(initialCapacity, DEFAULT_LOAD_FACTOR);
@@ -140,9 +166,23 @@ public class HashMap<K,V> extends AbstractMap<K,V>
      *       当key为null时，hash（key) =0 ，路由算法查询在哈希表Node数组位置也为0，因此key=null的数据将插在hash表Node[0]的链表中
      * 如果不用扰乱函数 ，每次路由只有末尾n位参与有效运算
      */
-    static final int hash(Object key) {
-        int h;
-        return (key == null) ? 0 : (h = key.hashCode()) ^ (h >>> 16);
+    final int hash(Object key) {
+        return (key == null) ? 0 : spread(key.hashCode());
+    }
+    /*
+     * hashSeed == 0: 原来的扰动函数 高16位异或到低16位
+     * hashSeed != 0: 自适应策略发现低位冲突严重时切换到的强扰动函数(murmur3 fmix32) 所有位都参与路由
+     */
+    final int spread(int h) {
+        int seed;
+        if ((seed = hashSeed) == 0)
+            return h ^ (h >>> 16);
+        h ^= seed;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        return h ^ (h >>> 16);
     }
     /*
      * onlyIfAbsent : =true时，如果散列表中有此key的数据，则不进行插入操作
@@ -192,7 +232,7 @@ public class HashMap<K,V> extends AbstractMap<K,V>
                     if ((e = p.next) == null) {
                         p.next = newNode(hash, key, value, null);
                         // 当前链表有8个元素 再插入一个元素需要进行树化
-                        if (binCount >= TREEIFY_THRESHOLD - 1) // -1 for 1st
+                        if (binCount >= treeifyThreshold - 1) // -1 for 1st
                             treeifyBin(tab, hash);
                         break;
                     }
@@ -209,8 +249,10 @@ public class HashMap<K,V> extends AbstractMap<K,V>
             // e!=null说明找到了相同key的node 需要进行替换
             if (e != null) { // existing mapping for key
                 V oldValue = e.value;
-                if (!onlyIfAbsent || oldValue == null)
+                if (!onlyIfAbsent || oldValue == null) {
                     e.value = value;
+                    valueReplaced(e.key, oldValue, value);
+                }
                 afterNodeAccess(e);
                 return oldValue;  //  替换完后直接返回
             }
@@ -222,6 +264,7 @@ public class HashMap<K,V> extends AbstractMap<K,V>
         if (++size > threshold)
             resize();
         afterNodeInsertion(evict);
+        nodeInserted(key, value);
         return null;
     }
 
@@ -344,8 +387,126 @@ public class HashMap<K,V> extends AbstractMap<K,V>
                 }
             }
         }
+        // 按新的threshold重新分配过滤器
+        if (bloom != null)
+            rebuildBloom();
+        return newTab;
+    }
+
+
+    /* shrink源码分析 */
+    /*
+     * 作用：缩容操作，resize()的逆过程。table长度减半，原来拆分到j和j+newCap的低位/高位两个桶重新合并到j
+     *
+     * 滞后(hysteresis)：只有当size < threshold/4且table比构造时的容量大时removeNode才会自动缩容，缩容后size < newThr/2，
+     *                  需要再插入至少newThr/2个元素才会重新扩容，避免在域值附近来回扩容缩容
+     */
+    final java.util.HashMap.Node<K,V>[] shrink() {
+        java.util.HashMap.Node<K,V>[] oldTab = table;
+        int oldCap = (oldTab == null) ? 0 : oldTab.length;
+        // 散列表未初始化或已经是最小长度 不缩容
+        if (oldCap <= DEFAULT_INITIAL_CAPACITY)
+            return oldTab;
+        int newCap = oldCap >>> 1;
+        float ft = (float)newCap * loadFactor;
+        threshold = (ft < (float)MAXIMUM_CAPACITY ? (int)ft : Integer.MAX_VALUE);
+
+        @SuppressWarnings({"rawtypes","unchecked"})
+        java.util.HashMap.Node<K,V>[] newTab = (java.util.HashMap.Node<K,V>[])new java.util.HashMap.Node[newCap];
+        table = newTab;
+        for (int j = 0; j < newCap; ++j) {
+            // lo: 扩容时留在原下标的桶  hi: 扩容时被移动到j+newCap的桶
+            java.util.HashMap.Node<K,V> lo = oldTab[j], hi = oldTab[j + newCap];
+            oldTab[j] = oldTab[j + newCap] = null;
+            if (hi == null)
+                newTab[j] = lo;
+            else if (lo == null)
+                newTab[j] = hi;
+            else
+                mergeBins(newTab, j, lo, hi);
+        }
+        if (bloom != null)
+            rebuildBloom();
         return newTab;
     }
+    /*
+     * 作用：把低位桶lo和高位桶hi合并到tab[index]，顺序为lo在前hi在后，与split拆分时保持的顺序一致
+     *      合并后元素个数<=untreeifyThreshold或table太小不允许树化时，通过TreeNode.untreeify退化成链表
+     *      否则把两个桶连成一条TreeNode链表后重新树化
+     */
+    final void mergeBins(java.util.HashMap.Node<K,V>[] tab, int index,
+                         java.util.HashMap.Node<K,V> lo, java.util.HashMap.Node<K,V> hi) {
+        int count = 0;
+        for (java.util.HashMap.Node<K,V> e = lo; e != null; e = e.next)
+            ++count;
+        for (java.util.HashMap.Node<K,V> e = hi; e != null; e = e.next)
+            ++count;
+        boolean anyTree = lo instanceof java.util.HashMap.TreeNode ||
+                hi instanceof java.util.HashMap.TreeNode;
+        if (tab.length < minTreeifyCapacity || count <= untreeifyThreshold ||
+                (!anyTree && count < treeifyThreshold)) {
+            // 链表化 两个链表首尾相连
+            if (lo instanceof java.util.HashMap.TreeNode)
+                lo = ((java.util.HashMap.TreeNode<K,V>)lo).untreeify(this);
+            if (hi instanceof java.util.HashMap.TreeNode)
+                hi = ((java.util.HashMap.TreeNode<K,V>)hi).untreeify(this);
+            java.util.HashMap.Node<K,V> tail = lo;
+            while (tail.next != null)
+                tail = tail.next;
+            tail.next = hi;
+            tab[index] = lo;
+        }
+        else {
+            // 树化 已经是TreeNode的节点直接复用，普通Node通过replacementTreeNode替换
+            java.util.HashMap.TreeNode<K,V> hd = null, tl = null;
+            java.util.HashMap.Node<K,V> e = lo, next;
+            boolean inHi = false;
+            for (;;) {
+                if (e == null) {
+                    if (inHi)
+                        break;
+                    inHi = true;
+                    e = hi;
+                    continue;
+                }
+                next = e.next;
+                java.util.HashMap.TreeNode<K,V> p = (e instanceof java.util.HashMap.TreeNode) ?
+                        (java.util.HashMap.TreeNode<K,V>)e : replacementTreeNode(e, null);
+                p.next = null;
+                if ((p.prev = tl) == null)
+                    hd = p;
+                else
+                    tl.next = p;
+                tl = p;
+                e = next;
+            }
+            tab[index] = hd;
+            hd.treeify(tab);
+        }
+    }
+    /*
+     * 作用：把table缩到刚好能容纳当前size的最小长度（不小于DEFAULT_INITIAL_CAPACITY）
+     *      size为0时直接释放table，下次putVal时按缺省值重新初始化
+     */
+    public void trimToSize() {
+        java.util.HashMap.Node<K,V>[] tab;
+        if ((tab = table) == null)
+            return;
+        if (size == 0) {
+            ++modCount;
+            table = null;
+            threshold = 0;
+            return;
+        }
+        float fc = (float)size / loadFactor + 1.0F;
+        int target = (fc >= (float)MAXIMUM_CAPACITY) ? MAXIMUM_CAPACITY :
+                Math.max(DEFAULT_INITIAL_CAPACITY, tableSizeFor((int)fc));
+        if (tab.length > target) {
+            ++modCount;
+            while (table.length > target)
+                shrink();
+        }
+    }
 
 
     /* get源码分析 */
@@ -361,6 +522,11 @@ public class HashMap<K,V> extends AbstractMap<K,V>
         java.util.HashMap.Node<K,V>[] tab; java.util.HashMap.Node<K,V> first, e; int n; K k;
 
 
+        // 过滤器判定不存在时不访问table
+        BloomFilter bf;
+        if ((bf = bloom) != null && !bf.mightContain(hash))
+            return null;
+
         // 条件满足： 散列表不为空 且路由到的桶中有元素
         if ((tab = table) != null && (n = tab.length) > 0 &&
                 (first = tab[(n - 1) & hash]) != null) {
@@ -388,6 +554,81 @@ public class HashMap<K,V> extends AbstractMap<K,V>
         return null;
     }
 
+    /* getByHash源码分析 */
+    /*
+     * 作用：不创建key对象的查找。调用方给出key.hashCode()的值和一个判断key是否相等的matcher，
+     *      例如直接从byte缓冲区计算String的hashCode并逐字节比较，热点循环中matcher可以复用同一个实例
+     * keyHash: 与key.hashCode()相同的值，内部会做与hash(key)相同的扰动
+     */
+    public V getByHash(int keyHash, Predicate<? super K> matcher) {
+        java.util.HashMap.Node<K,V> e;
+        return (e = getNodeByHash(spread(keyHash), matcher)) == null ? null : e.value;
+    }
+    public boolean containsKeyByHash(int keyHash, Predicate<? super K> matcher) {
+        return getNodeByHash(spread(keyHash), matcher) != null;
+    }
+    /*
+     * 与getNode相同的查找路径，只是把 key.equals(k) 换成 matcher.test(k)
+     * hash: 已经扰动过的hash值
+     */
+    final java.util.HashMap.Node<K,V> getNodeByHash(int hash, Predicate<? super K> matcher) {
+        java.util.HashMap.Node<K,V>[] tab; java.util.HashMap.Node<K,V> first, e; int n;
+        BloomFilter bf;
+        if ((bf = bloom) != null && !bf.mightContain(hash))
+            return null;
+        if ((tab = table) != null && (n = tab.length) > 0 &&
+                (first = tab[(n - 1) & hash]) != null) {
+            if (first.hash == hash && matcher.test(first.key))
+                return first;
+            if ((e = first.next) != null) {
+                // 树中按hash有序 只需要在hash相等的节点上调用matcher
+                if (first instanceof java.util.HashMap.TreeNode) {
+                    java.util.HashMap.TreeNode<K,V> t = (java.util.HashMap.TreeNode<K,V>)first;
+                    return ((t.parent != null) ? t.root() : t).findByHash(hash, matcher);
+                }
+                do {
+                    if (e.hash == hash && matcher.test(e.key))
+                        return e;
+                } while ((e = e.next) != null);
+            }
+        }
+        return null;
+    }
+
+    /* intern源码分析 */
+    /*
+     * 作用：返回散列表中已存储的、与key相等的那个key实例(规范实例)，不存在时返回null
+     *      调用方拿到规范实例后可以丢掉自己手里的重复key，减少内存占用
+     */
+    public K canonicalKey(Object key) {
+        java.util.HashMap.Node<K,V> e;
+        return (e = getNode(hash(key), key)) == null ? null : e.key;
+    }
+    /*
+     * 作用：key已存在时返回Node中存储的key实例，不存在时返回传入的key本身，不会插入数据
+     */
+    public K intern(K key) {
+        java.util.HashMap.Node<K,V> e;
+        return (e = getNode(hash(key), key)) == null ? key : e.key;
+    }
+    /*
+     * 作用：与put相同，写入key-value，但返回值是散列表中的规范key实例而不是旧value
+     *      key已存在时只替换value，Node中原来的key实例保持不变
+     */
+    public K putInterned(K key, V value) {
+        int hash = hash(key);
+        java.util.HashMap.Node<K,V> e;
+        if ((e = getNode(hash, key)) != null) {
+            V oldValue = e.value;
+            e.value = value;
+            valueReplaced(e.key, oldValue, value);
+            afterNodeAccess(e);
+            return e.key;
+        }
+        putVal(hash, key, value, false, true);
+        return key;
+    }
+
     /* remove 源码分析 */
     public V remove(Object key) {
         java.util.HashMap.Node<K,V> e;
@@ -451,6 +692,14 @@ public class HashMap<K,V> extends AbstractMap<K,V>
                 ++modCount;  //删除操作也要更新modCount
                 --size;
                 afterNodeRemoval(node);
+                nodeRemoved(node.key, node.value);
+                // 删除留下的位累计到元素个数的一半时重建过滤器
+                if (bloom != null && ++bloomRemovals > (size >>> 1) + 64)
+                    rebuildBloom();
+                // 元素个数低于threshold的1/4时缩容  movable=false说明正在迭代器中删除 此时不能改变table
+                // 预先指定了容量的HashMap不缩到构造时的容量以下，避免删空后再填满时反复扩容
+                if (movable && size < (threshold >>> 2) && n > Math.max(DEFAULT_INITIAL_CAPACITY, initialCapacity))
+                    shrink();
                 return node; // 返回删除的元素
             }
         }
@@ -458,6 +707,19 @@ public class HashMap<K,V> extends AbstractMap<K,V>
     }
 
 
+    /*
+     * 作用：删除已经失效的条目(WeakHashMap/SoftValueHashMap中key或value已被GC回收)，不增加modCount，也不缩容
+     *      被删除的Node保留原来的next，正在进行的迭代可以越过它继续，由上层迭代器跳过已失效的条目
+     *      这样get/size这类读操作顺带清理时不会让正在进行的迭代抛出ConcurrentModificationException，
+     *      与java.util.WeakHashMap.expungeStaleEntries的做法相同
+     */
+    final boolean expungeNode(Object key, Object value, boolean matchValue) {
+        int mc = modCount;
+        java.util.HashMap.Node<K,V> e = removeNode(hash(key), key, value, matchValue, false);
+        modCount = mc;
+        return e != null;
+    }
+
     /* replace源码分析 */
     @Override
     public boolean replace(K key, V oldValue, V newValue) {
@@ -465,6 +727,7 @@ public class HashMap<K,V> extends AbstractMap<K,V>
         if ((e = getNode(hash(key), key)) != null &&
                 ((v = e.value) == oldValue || (v != null && v.equals(oldValue)))) {
             e.value = newValue;
+            valueReplaced(e.key, v, newValue);
             afterNodeAccess(e);
             return true;
         }
@@ -476,6 +739,7 @@ public class HashMap<K,V> extends AbstractMap<K,V>
         if ((e = getNode(hash(key), key)) != null) {
             V oldValue = e.value;
             e.value = value;
+            valueReplaced(e.key, oldValue, value);
             afterNodeAccess(e);
             return oldValue;
         }
@@ -522,11 +786,23 @@ public class HashMap<K,V> extends AbstractMap<K,V>
             return false;
         }
     }
+    /*
+     * 作用：x的类型c实现了Comparable<c>时返回c，否则返回null
+     *      反射检查的结果按Class缓存在COMPARABLE_CLASSES中，树化桶的每次查找/插入不再重复调用getGenericInterfaces
+     */
     static Class<?> comparableClassFor(Object x) {
         if (x instanceof Comparable) {
-            Class<?> c; Type[] ts, as; Type t; ParameterizedType p;
+            Class<?> c;
             if ((c = x.getClass()) == String.class) // bypass checks
                 return c;
+            return ((c = COMPARABLE_CLASSES.get(c)) == Object.class) ? null : c;
+        }
+        return null;
+    }
+    // comparableClassFor的缓存 不是Comparable<c>时缓存Object.class(ClassValue不能缓存null)
+    static final ClassValue<Class<?>> COMPARABLE_CLASSES = new ClassValue<Class<?>>() {
+        protected Class<?> computeValue(Class<?> c) {
+            Type[] ts, as; Type t; ParameterizedType p;
             if ((ts = c.getGenericInterfaces()) != null) {
                 for (int i = 0; i < ts.length; ++i) {
                     if (((t = ts[i]) instanceof ParameterizedType) &&
@@ -537,9 +813,9 @@ public class HashMap<K,V> extends AbstractMap<K,V>
                         return c;
                 }
             }
+            return Object.class;
         }
-        return null;
-    }
+    };
     @SuppressWarnings({"rawtypes","unchecked"}) // for cast to Comparable
     static int compareComparables(Class<?> kc, Object k, Object x) {
         return (x == null || x.getClass() != kc ? 0 :
@@ -577,11 +853,26 @@ public class HashMap<K,V> extends AbstractMap<K,V>
     public V putIfAbsent(K key, V value) {
         return putVal(hash(key), key, value, true, true);
     }
+    /*
+     * 作用：某个桶中的链表长度达到treeifyThreshold时调用，决定如何处理冲突
+     *      table长度 < minTreeifyCapacity: 扩容
+     *      自适应模式下，桶中大部分节点的hash值各不相同(只是低位相同)，说明扰动函数没有把key散开，
+     *          换成强扰动函数重新散列整个table(只做一次)
+     *      其他情况: 树化
+     */
     final void treeifyBin(java.util.HashMap.Node<K,V>[] tab, int hash) {
         int n, index; java.util.HashMap.Node<K,V> e;
-        if (tab == null || (n = tab.length) < MIN_TREEIFY_CAPACITY)
+        ++longBins;
+        if (tab == null || (n = tab.length) < minTreeifyCapacity) {
+            ++collisionResizes;
             resize();
+        }
         else if ((e = tab[index = (n - 1) & hash]) != null) {
+            if (adaptiveCollisions && hashSeed == 0 && !mostlySameHash(e)) {
+                rehash();
+                return;
+            }
+            ++treeifications;
             java.util.HashMap.TreeNode<K,V> hd = null, tl = null;
             do {
                 java.util.HashMap.TreeNode<K,V> p = replacementTreeNode(e, null);
@@ -597,6 +888,315 @@ public class HashMap<K,V> extends AbstractMap<K,V>
                 hd.treeify(tab);
         }
     }
+    /*
+     * 作用：判断链表中是否至少一半节点与首节点hash值完全相同
+     *      完全相同的hash无论怎么扰动都会落在同一个桶，只能靠树化解决
+     */
+    static <K,V> boolean mostlySameHash(java.util.HashMap.Node<K,V> first) {
+        int same = 0, count = 0;
+        for (java.util.HashMap.Node<K,V> e = first; e != null; e = e.next) {
+            ++count;
+            if (e.hash == first.hash)
+                ++same;
+        }
+        return same * 2 >= count;
+    }
+    /*
+     * 作用：切换到强扰动函数，按新的hash值重新散列所有元素，table长度不变
+     *      Node.hash是final的，所以每个元素都要创建新的Node
+     *      重新散列后仍然过长的桶直接树化
+     */
+    final void rehash() {
+        java.util.HashMap.Node<K,V>[] oldTab = table;
+        int n = oldTab.length;
+        ++rehashes;
+        ++modCount;
+        hashSeed = ThreadLocalRandom.current().nextInt() | 1;
+        @SuppressWarnings({"rawtypes","unchecked"})
+        java.util.HashMap.Node<K,V>[] newTab = (java.util.HashMap.Node<K,V>[])new java.util.HashMap.Node[n];
+        @SuppressWarnings({"rawtypes","unchecked"})
+        java.util.HashMap.Node<K,V>[] tails = (java.util.HashMap.Node<K,V>[])new java.util.HashMap.Node[n];
+        int[] counts = new int[n];
+        for (int j = 0; j < n; ++j) {
+            // 树化桶中的TreeNode同样通过next串成链表
+            for (java.util.HashMap.Node<K,V> e = oldTab[j]; e != null; e = e.next) {
+                int h = hash(e.key), i = (n - 1) & h;
+                java.util.HashMap.Node<K,V> p = newNode(h, e.key, e.value, null);
+                if (tails[i] == null)
+                    newTab[i] = p;
+                else
+                    tails[i].next = p;
+                tails[i] = p;
+                ++counts[i];
+            }
+            oldTab[j] = null;
+        }
+        table = newTab;
+        for (int i = 0; i < n; ++i) {
+            if (counts[i] >= treeifyThreshold && n >= minTreeifyCapacity) {
+                ++treeifications;
+                java.util.HashMap.TreeNode<K,V> hd = null, tl = null;
+                for (java.util.HashMap.Node<K,V> e = newTab[i]; e != null; e = e.next) {
+                    java.util.HashMap.TreeNode<K,V> p = replacementTreeNode(e, null);
+                    if ((p.prev = tl) == null)
+                        hd = p;
+                    else
+                        tl.next = p;
+                    tl = p;
+                }
+                newTab[i] = hd;
+                hd.treeify(newTab);
+            }
+        }
+        // hash全部变了 旧的位只会增加误判
+        if (bloom != null)
+            rebuildBloom();
+    }
+    /*
+     * 作用：按实例设置树化参数
+     *      treeifyThreshold: 链表长度达到该值时树化，equals昂贵而compareTo便宜的key可以调小(例如4)，
+     *                        Integer.MAX_VALUE表示永不树化
+     *      untreeifyThreshold: 扩容拆分/缩容合并后树中元素个数<=该值时退化成链表，必须小于treeifyThreshold
+     *      minTreeifyCapacity: table长度小于该值时用扩容代替树化，调大可以让小map只扩容不树化
+     *      只影响之后发生的树化/链表化，已有的桶结构不变
+     */
+    public void setTreeifyThresholds(int treeifyThreshold, int untreeifyThreshold,
+                                     int minTreeifyCapacity) {
+        if (treeifyThreshold < 2)
+            throw new IllegalArgumentException("Illegal treeify threshold: " +
+                    treeifyThreshold);
+        if (untreeifyThreshold < 0 || untreeifyThreshold >= treeifyThreshold)
+            throw new IllegalArgumentException("Illegal untreeify threshold: " +
+                    untreeifyThreshold);
+        if (minTreeifyCapacity < 0)
+            throw new IllegalArgumentException("Illegal min treeify capacity: " +
+                    minTreeifyCapacity);
+        this.treeifyThreshold = treeifyThreshold;
+        this.untreeifyThreshold = untreeifyThreshold;
+        this.minTreeifyCapacity = minTreeifyCapacity;
+    }
+    /*
+     * 作用：开启/关闭自适应冲突策略，treeifyBin根据桶中hash值的分布在扩容、树化、强扰动重新散列之间选择
+     */
+    public void setAdaptiveCollisions(boolean adaptive) {
+        this.adaptiveCollisions = adaptive;
+    }
+    /*
+     * 作用：开启变更流，之后的put/replace/remove/clear都会作为事件写入容量为bufferCapacity的环形缓冲区，
+     *      订阅者在executor上按批(每批最多maxBatch个)收到事件，见ChangeFeed
+     *      executor要在其他线程上执行任务，否则订阅者代码会在修改Map的线程上运行
+     *      不满一批的事件最多延迟maxDelayMillis投递，0表示每个事件都立即调度
+     *      已经开启时直接返回原来的变更流
+     */
+    public ChangeFeed<K,V> enableChangeFeed(int bufferCapacity, int maxBatch, long maxDelayMillis,
+                                            Executor executor) {
+        ChangeFeed<K,V> feed;
+        if ((feed = changeFeed) == null)
+            changeFeed = feed = new ChangeFeed<>(bufferCapacity, maxBatch, maxDelayMillis, executor);
+        return feed;
+    }
+    public ChangeFeed<K,V> enableChangeFeed(int bufferCapacity, int maxBatch, Executor executor) {
+        return enableChangeFeed(bufferCapacity, maxBatch, ChangeFeed.DEFAULT_MAX_DELAY_MILLIS, executor);
+    }
+    // 关闭变更流，已订阅者收到剩余事件后收到onComplete
+    public void disableChangeFeed() {
+        ChangeFeed<K,V> feed;
+        if ((feed = changeFeed) != null) {
+            changeFeed = null;
+            feed.close();
+        }
+    }
+    /*
+     * 作用：开启后在putVal/removeNode/replace/compute系列/merge以及Entry.setValue中增量维护hashCode，
+     *      hashCode()变成O(1)，equals可以先比较两边的hashCode
+     *      开启时遍历一次计算初始值
+     */
+    public void setIncrementalHashCode(boolean enabled) {
+        if (enabled && !trackHashCode)
+            mapHash = super.hashCode();
+        trackHashCode = enabled;
+    }
+
+    static int entryHash(Object key, Object value) {
+        return Objects.hashCode(key) ^ Objects.hashCode(value);
+    }
+    // 以下三个方法在映射变化后调用：维护增量hashCode，向变更流发布事件，子类(IndexedHashMap)覆盖后维护自己的索引
+    void valueReplaced(K key, V oldValue, V newValue) {
+        if (trackHashCode)
+            mapHash += entryHash(key, newValue) - entryHash(key, oldValue);
+        if (changeFeed != null)
+            changeFeed.publish(ChangeFeed.Type.REPLACE, key, oldValue, newValue);
+    }
+    void nodeInserted(K key, V value) {
+        if (trackHashCode)
+            mapHash += entryHash(key, value);
+        if (changeFeed != null)
+            changeFeed.publish(ChangeFeed.Type.PUT, key, null, value);
+    }
+    void nodeRemoved(K key, V value) {
+        if (trackHashCode)
+            mapHash -= entryHash(key, value);
+        if (changeFeed != null)
+            changeFeed.publish(ChangeFeed.Type.REMOVE, key, value, null);
+    }
+
+    /*
+     * 作用：entrySet交给外部的条目。开启增量hashCode、变更流或者子类需要观察value变化时包装成TrackedEntry，
+     *      使setValue也经过valueReplaced，否则直接返回Node
+     */
+    final java.util.Map.Entry<K,V> exposeEntry(java.util.HashMap.Node<K,V> e) {
+        return (trackHashCode || changeFeed != null || observesValues()) ? new TrackedEntry(e) : e;
+    }
+    boolean observesValues() {
+        return false;
+    }
+
+    final class TrackedEntry implements java.util.Map.Entry<K,V> {
+        final java.util.HashMap.Node<K,V> node;
+
+        TrackedEntry(java.util.HashMap.Node<K,V> node) {
+            this.node = node;
+        }
+
+        public K getKey()               { return node.key; }
+        public V getValue()             { return node.value; }
+        public String toString()        { return node.toString(); }
+        public int hashCode()           { return node.hashCode(); }
+        public boolean equals(Object o) { return node.equals(o); }
+
+        public V setValue(V value) {
+            V oldValue = node.value;
+            node.value = value;
+            valueReplaced(node.key, oldValue, value);
+            return oldValue;
+        }
+    }
+
+    public int hashCode() {
+        return trackHashCode ? mapHash : super.hashCode();
+    }
+
+    /*
+     * 作用：先比较size，两边都开启增量hashCode时比较hashCode
+     *      对方也是HashMap且扰动函数相同(hashSeed相等)时，直接用Node中保存的hash查找，不再调用hashCode；
+     *      容量也相同时同一个key一定在同一个下标的桶中，逐桶比较
+     */
+    public boolean equals(Object o) {
+        if (o == this)
+            return true;
+        if (!(o instanceof java.util.HashMap))
+            return super.equals(o);
+        java.util.HashMap<?,?> m = (java.util.HashMap<?,?>) o;
+        if (m.size != size)
+            return false;
+        if (trackHashCode && m.trackHashCode && mapHash != m.mapHash)
+            return false;
+        if (m.hashSeed != hashSeed)
+            return super.equals(o);
+        java.util.HashMap.Node<K,V>[] tab = table;
+        java.util.HashMap.Node<?,?>[] otab = m.table;
+        if (tab == null || otab == null || size == 0)
+            return true;
+        boolean sameBins = tab.length == otab.length;
+        try {
+            for (int i = 0; i < tab.length; ++i) {
+                for (java.util.HashMap.Node<K,V> e = tab[i]; e != null; e = e.next) {
+                    java.util.HashMap.Node<?,?> p = sameBins ?
+                            findInBin(otab[i], e.hash, e.key) : m.getNode(e.hash, e.key);
+                    if (p == null || !Objects.equals(e.value, p.value))
+                        return false;
+                }
+            }
+        } catch (ClassCastException unused) {
+            return false;
+        } catch (NullPointerException unused) {
+            return false;
+        }
+        return true;
+    }
+
+    // 在first开始的桶中查找，树形桶走红黑树
+    static java.util.HashMap.Node<?,?> findInBin(java.util.HashMap.Node<?,?> first, int hash, Object key) {
+        if (first instanceof java.util.HashMap.TreeNode)
+            return ((java.util.HashMap.TreeNode<?,?>) first).getTreeNode(hash, key);
+        for (java.util.HashMap.Node<?,?> e = first; e != null; e = e.next) {
+            Object k;
+            if (e.hash == hash && ((k = e.key) == key || (key != null && key.equals(k))))
+                return e;
+        }
+        return null;
+    }
+
+    /*
+     * 作用：开启Bloom过滤器，get/containsKey等查找先查过滤器，判定不存在时不访问table
+     *      适合大部分查找都不命中的场景；插入时同步加入过滤器，resize/shrink/rehash以及删除累计较多时重建
+     * 参数：bitsPerEntry 每个元素的位数，10位时误判率约1%
+     */
+    public void enableBloomFilter(int bitsPerEntry) {
+        if (bitsPerEntry <= 0)
+            throw new IllegalArgumentException("Illegal bits per entry: " + bitsPerEntry);
+        bloomBitsPerEntry = bitsPerEntry;
+        rebuildBloom();
+    }
+    public void disableBloomFilter() {
+        bloom = null;
+        bloomBitsPerEntry = 0;
+    }
+    // 当前的过滤器，用来查看误判率和内存占用，未开启时返回null
+    public BloomFilter bloomFilter() {
+        return bloom;
+    }
+    /*
+     * 作用：按threshold分配新的过滤器，用Node中保存的hash重新填充
+     */
+    final void rebuildBloom() {
+        java.util.HashMap.Node<K,V>[] tab;
+        BloomFilter bf = new BloomFilter(Math.max(threshold, size), bloomBitsPerEntry);
+        if ((tab = table) != null) {
+            for (int i = 0; i < tab.length; ++i) {
+                for (java.util.HashMap.Node<K,V> e = tab[i]; e != null; e = e.next)
+                    bf.add(e.hash);
+            }
+        }
+        bloom = bf;
+        bloomRemovals = 0;
+    }
+    public CollisionStats collisionStats() {
+        return new CollisionStats(longBins, treeifications, collisionResizes,
+                rehashes, hashSeed != 0);
+    }
+    /*
+     * 冲突统计快照
+     *      longBins: 链表长度达到treeifyThreshold的次数
+     *      treeifications: 实际树化的桶数
+     *      collisionResizes: 因为table太小用扩容代替树化的次数
+     *      rehashes: 切换强扰动函数重新散列的次数
+     *      strongHash: 当前是否在使用强扰动函数
+     */
+    public static final class CollisionStats {
+        public final int longBins;
+        public final int treeifications;
+        public final int collisionResizes;
+        public final int rehashes;
+        public final boolean strongHash;
+
+        CollisionStats(int longBins, int treeifications, int collisionResizes,
+                       int rehashes, boolean strongHash) {
+            this.longBins = longBins;
+            this.treeifications = treeifications;
+            this.collisionResizes = collisionResizes;
+            this.rehashes = rehashes;
+            this.strongHash = strongHash;
+        }
+
+        public String toString() {
+            return "CollisionStats[longBins=" + longBins +
+                    ", treeifications=" + treeifications +
+                    ", collisionResizes=" + collisionResizes +
+                    ", rehashes=" + rehashes +
+                    ", strongHash=" + strongHash + "]";
+        }
+    }
     public void putAll(java.util.Map<? extends K, ? extends V> m) {
         putMapEntries(m, true);
     }
@@ -607,6 +1207,13 @@ public class HashMap<K,V> extends AbstractMap<K,V>
             size = 0;
             for (int i = 0; i < tab.length; ++i)
                 tab[i] = null;
+            mapHash = 0;
+            if (bloom != null) {
+                bloom.clear();
+                bloomRemovals = 0;
+            }
+            if (changeFeed != null)
+                changeFeed.publish(ChangeFeed.Type.CLEAR, null, null, null);
         }
     }
     public boolean containsValue(Object value) {
@@ -725,7 +1332,7 @@ public class HashMap<K,V> extends AbstractMap<K,V>
                 int mc = modCount;
                 for (int i = 0; i < tab.length; ++i) {
                     for (java.util.HashMap.Node<K,V> e = tab[i]; e != null; e = e.next)
-                        action.accept(e);
+                        action.accept(exposeEntry(e));
                 }
                 if (modCount != mc)
                     throw new ConcurrentModificationException();
@@ -737,6 +1344,13 @@ public class HashMap<K,V> extends AbstractMap<K,V>
         java.util.HashMap.Node<K,V> e;
         return (e = getNode(hash(key), key)) == null ? defaultValue : e.value;
     }
+    /*
+     * computeIfAbsent/compute/merge 单次探测：
+     *      只路由、遍历一次桶，记住插入位置(链表头/树中的父节点)，映射函数执行完后直接在该位置插入
+     *      不再在入口处预先扩容，而是像putVal一样插入后再检查是否需要扩容，避免扩容后重新计算下标
+     *      映射函数执行期间散列表发生了结构修改(modCount变化，例如函数内部put导致扩容)时，之前的探测结果失效，
+     *      才退回putVal/removeNode重新探测
+     */
     @Override
     public V computeIfAbsent(K key,
                              Function<? super K, ? extends V> mappingFunction) {
@@ -745,14 +1359,19 @@ public class HashMap<K,V> extends AbstractMap<K,V>
         int hash = hash(key);
         java.util.HashMap.Node<K,V>[] tab; java.util.HashMap.Node<K,V> first; int n, i;
         int binCount = 0;
-        java.util.HashMap.TreeNode<K,V> t = null;
+        java.util.HashMap.TreeNode<K,V> t = null, parent = null;
         java.util.HashMap.Node<K,V> old = null;
-        if (size > threshold || (tab = table) == null ||
-                (n = tab.length) == 0)
+        if ((tab = table) == null || (n = tab.length) == 0)
             n = (tab = resize()).length;
         if ((first = tab[i = (n - 1) & hash]) != null) {
-            if (first instanceof java.util.HashMap.TreeNode)
-                old = (t = (java.util.HashMap.TreeNode<K,V>)first).getTreeNode(hash, key);
+            if (first instanceof java.util.HashMap.TreeNode) {
+                java.util.HashMap.TreeNode<K,V> r; K k;
+                r = (t = (java.util.HashMap.TreeNode<K,V>)first).findOrParent(hash, key);
+                if (r.hash == hash && ((k = r.key) == key || (key != null && key.equals(k))))
+                    old = r;
+                else
+                    parent = r;
+            }
             else {
                 java.util.HashMap.Node<K,V> e = first; K k;
                 do {
@@ -770,24 +1389,32 @@ public class HashMap<K,V> extends AbstractMap<K,V>
                 return oldValue;
             }
         }
+        int mc = modCount;
         V v = mappingFunction.apply(key);
         if (v == null) {
             return null;
+        } else if (mc != modCount) {
+            // 映射函数修改了散列表结构 重新探测 期间可能rehash换了hashSeed 重新计算hash
+            putVal(hash(key), key, v, false, true);
+            return v;
         } else if (old != null) {
             old.value = v;
+            valueReplaced(old.key, null, v);
             afterNodeAccess(old);
             return v;
         }
         else if (t != null)
-            t.putTreeVal(this, tab, hash, key, v);
+            parent.putTreeChild(this, tab, hash, key, v);
         else {
             tab[i] = newNode(hash, key, v, first);
-            if (binCount >= TREEIFY_THRESHOLD - 1)
+            if (binCount >= treeifyThreshold - 1)
                 treeifyBin(tab, hash);
         }
         ++modCount;
-        ++size;
+        if (++size > threshold)
+            resize();
         afterNodeInsertion(true);
+        nodeInserted(key, v);
         return v;
     }
     public V computeIfPresent(K key,
@@ -798,9 +1425,19 @@ public class HashMap<K,V> extends AbstractMap<K,V>
         int hash = hash(key);
         if ((e = getNode(hash, key)) != null &&
                 (oldValue = e.value) != null) {
+            int mc = modCount;
             V v = remappingFunction.apply(key, oldValue);
+            if (mc != modCount) {
+                // 映射函数修改了散列表结构 e可能已经不在表中 按新的hash重新探测
+                if (v != null)
+                    putVal(hash(key), key, v, false, true);
+                else
+                    removeNode(hash(key), key, null, false, true);
+                return v;
+            }
             if (v != null) {
                 e.value = v;
+                valueReplaced(e.key, oldValue, v);
                 afterNodeAccess(e);
                 return v;
             }
@@ -817,14 +1454,19 @@ public class HashMap<K,V> extends AbstractMap<K,V>
         int hash = hash(key);
         java.util.HashMap.Node<K,V>[] tab; java.util.HashMap.Node<K,V> first; int n, i;
         int binCount = 0;
-        java.util.HashMap.TreeNode<K,V> t = null;
+        java.util.HashMap.TreeNode<K,V> t = null, parent = null;
         java.util.HashMap.Node<K,V> old = null;
-        if (size > threshold || (tab = table) == null ||
-                (n = tab.length) == 0)
+        if ((tab = table) == null || (n = tab.length) == 0)
             n = (tab = resize()).length;
         if ((first = tab[i = (n - 1) & hash]) != null) {
-            if (first instanceof java.util.HashMap.TreeNode)
-                old = (t = (java.util.HashMap.TreeNode<K,V>)first).getTreeNode(hash, key);
+            if (first instanceof java.util.HashMap.TreeNode) {
+                java.util.HashMap.TreeNode<K,V> r; K k;
+                r = (t = (java.util.HashMap.TreeNode<K,V>)first).findOrParent(hash, key);
+                if (r.hash == hash && ((k = r.key) == key || (key != null && key.equals(k))))
+                    old = r;
+                else
+                    parent = r;
+            }
             else {
                 java.util.HashMap.Node<K,V> e = first; K k;
                 do {
@@ -838,10 +1480,19 @@ public class HashMap<K,V> extends AbstractMap<K,V>
             }
         }
         V oldValue = (old == null) ? null : old.value;
+        int mc = modCount;
         V v = remappingFunction.apply(key, oldValue);
-        if (old != null) {
+        if (mc != modCount) {
+            // 映射函数修改了散列表结构 重新探测 期间可能rehash换了hashSeed 重新计算hash
+            if (v != null)
+                putVal(hash(key), key, v, false, true);
+            else
+                removeNode(hash(key), key, null, false, true);
+        }
+        else if (old != null) {
             if (v != null) {
                 old.value = v;
+                valueReplaced(old.key, oldValue, v);
                 afterNodeAccess(old);
             }
             else
@@ -849,15 +1500,17 @@ public class HashMap<K,V> extends AbstractMap<K,V>
         }
         else if (v != null) {
             if (t != null)
-                t.putTreeVal(this, tab, hash, key, v);
+                parent.putTreeChild(this, tab, hash, key, v);
             else {
                 tab[i] = newNode(hash, key, v, first);
-                if (binCount >= TREEIFY_THRESHOLD - 1)
+                if (binCount >= treeifyThreshold - 1)
                     treeifyBin(tab, hash);
             }
             ++modCount;
-            ++size;
+            if (++size > threshold)
+                resize();
             afterNodeInsertion(true);
+            nodeInserted(key, v);
         }
         return v;
     }
@@ -871,14 +1524,19 @@ public class HashMap<K,V> extends AbstractMap<K,V>
         int hash = hash(key);
         java.util.HashMap.Node<K,V>[] tab; java.util.HashMap.Node<K,V> first; int n, i;
         int binCount = 0;
-        java.util.HashMap.TreeNode<K,V> t = null;
+        java.util.HashMap.TreeNode<K,V> t = null, parent = null;
         java.util.HashMap.Node<K,V> old = null;
-        if (size > threshold || (tab = table) == null ||
-                (n = tab.length) == 0)
+        if ((tab = table) == null || (n = tab.length) == 0)
             n = (tab = resize()).length;
         if ((first = tab[i = (n - 1) & hash]) != null) {
-            if (first instanceof java.util.HashMap.TreeNode)
-                old = (t = (java.util.HashMap.TreeNode<K,V>)first).getTreeNode(hash, key);
+            if (first instanceof java.util.HashMap.TreeNode) {
+                java.util.HashMap.TreeNode<K,V> r; K k;
+                r = (t = (java.util.HashMap.TreeNode<K,V>)first).findOrParent(hash, key);
+                if (r.hash == hash && ((k = r.key) == key || (key != null && key.equals(k))))
+                    old = r;
+                else
+                    parent = r;
+            }
             else {
                 java.util.HashMap.Node<K,V> e = first; K k;
                 do {
@@ -893,30 +1551,43 @@ public class HashMap<K,V> extends AbstractMap<K,V>
         }
         if (old != null) {
             V v;
-            if (old.value != null)
+            if (old.value != null) {
+                int mc = modCount;
                 v = remappingFunction.apply(old.value, value);
+                if (mc != modCount) {
+                    // 映射函数修改了散列表结构 重新探测 期间可能rehash换了hashSeed 重新计算hash
+                    if (v != null)
+                        putVal(hash(key), key, v, false, true);
+                    else
+                        removeNode(hash(key), key, null, false, true);
+                    return v;
+                }
+            }
             else
                 v = value;
             if (v != null) {
+                V oldValue = old.value;
                 old.value = v;
+                valueReplaced(old.key, oldValue, v);
                 afterNodeAccess(old);
             }
             else
                 removeNode(hash, key, null, false, true);
             return v;
         }
-        if (value != null) {
-            if (t != null)
-                t.putTreeVal(this, tab, hash, key, value);
-            else {
-                tab[i] = newNode(hash, key, value, first);
-                if (binCount >= TREEIFY_THRESHOLD - 1)
-                    treeifyBin(tab, hash);
-            }
-            ++modCount;
-            ++size;
-            afterNodeInsertion(true);
+        // 未命中时不调用映射函数 直接在探测到的位置插入
+        if (t != null)
+            parent.putTreeChild(this, tab, hash, key, value);
+        else {
+            tab[i] = newNode(hash, key, value, first);
+            if (binCount >= treeifyThreshold - 1)
+                treeifyBin(tab, hash);
         }
+        ++modCount;
+        if (++size > threshold)
+            resize();
+        afterNodeInsertion(true);
+        nodeInserted(key, value);
         return value;
     }
     @Override
@@ -934,6 +1605,43 @@ public class HashMap<K,V> extends AbstractMap<K,V>
                 throw new ConcurrentModificationException();
         }
     }
+    /*
+     * 作用：只遍历key/value，不创建keySet()/values()视图和迭代器
+     */
+    public void forEachKey(Consumer<? super K> action) {
+        java.util.HashMap.Node<K,V>[] tab;
+        if (action == null)
+            throw new NullPointerException();
+        if (size > 0 && (tab = table) != null) {
+            int mc = modCount;
+            for (int i = 0; i < tab.length; ++i) {
+                for (java.util.HashMap.Node<K,V> e = tab[i]; e != null; e = e.next)
+                    action.accept(e.key);
+            }
+            if (modCount != mc)
+                throw new ConcurrentModificationException();
+        }
+    }
+    public void forEachValue(Consumer<? super V> action) {
+        java.util.HashMap.Node<K,V>[] tab;
+        if (action == null)
+            throw new NullPointerException();
+        if (size > 0 && (tab = table) != null) {
+            int mc = modCount;
+            for (int i = 0; i < tab.length; ++i) {
+                for (java.util.HashMap.Node<K,V> e = tab[i]; e != null; e = e.next)
+                    action.accept(e.value);
+            }
+            if (modCount != mc)
+                throw new ConcurrentModificationException();
+        }
+    }
+    /*
+     * 作用：返回一个新游标，调用方保存后用reset重复使用，之后的遍历不再分配对象 见MapCursor
+     */
+    public MapCursor<K,V> cursor() {
+        return new java.util.HashMap.HashCursor();
+    }
     @Override
     public void replaceAll(BiFunction<? super K, ? super V, ? extends V> function) {
         java.util.HashMap.Node<K,V>[] tab;
@@ -943,7 +1651,9 @@ public class HashMap<K,V> extends AbstractMap<K,V>
             int mc = modCount;
             for (int i = 0; i < tab.length; ++i) {
                 for (java.util.HashMap.Node<K,V> e = tab[i]; e != null; e = e.next) {
-                    e.value = function.apply(e.key, e.value);
+                    V oldValue = e.value;
+                    e.value = function.apply(e.key, oldValue);
+                    valueReplaced(e.key, oldValue, e.value);
                 }
             }
             if (modCount != mc)
@@ -961,6 +1671,8 @@ public class HashMap<K,V> extends AbstractMap<K,V>
         }
         result.reinitialize();
         result.putMapEntries(this, false);
+        if (result.bloomBitsPerEntry > 0)
+            result.rebuildBloom();
         return result;
     }
     final float loadFactor() { return loadFactor; }
@@ -983,6 +1695,10 @@ public class HashMap<K,V> extends AbstractMap<K,V>
         // Read in the threshold (ignored), loadfactor, and any hidden stuff
         s.defaultReadObject();
         reinitialize();
+        // 树化参数和自适应策略不参与序列化 恢复为缺省值
+        treeifyThreshold = TREEIFY_THRESHOLD;
+        untreeifyThreshold = UNTREEIFY_THRESHOLD;
+        minTreeifyCapacity = MIN_TREEIFY_CAPACITY;
         if (loadFactor <= 0 || Float.isNaN(loadFactor))
             throw new InvalidObjectException("Illegal load factor: " +
                     loadFactor);
@@ -1063,6 +1779,75 @@ public class HashMap<K,V> extends AbstractMap<K,V>
             expectedModCount = modCount;
         }
     }
+    /*
+     * 与HashIterator的遍历方式相同：沿table下标推进，桶内(包括树形桶)沿next推进
+     */
+    final class HashCursor implements MapCursor<K,V> {
+        java.util.HashMap.Node<K,V> next;        // 下一次advance移动到的条目
+        java.util.HashMap.Node<K,V> current;
+        int expectedModCount;
+        int index;
+
+        HashCursor() {
+            reset();
+        }
+
+        public void reset() {
+            java.util.HashMap.Node<K,V>[] t = table;
+            expectedModCount = modCount;
+            current = next = null;
+            index = 0;
+            if (t != null && size > 0) {
+                do {} while (index < t.length && (next = t[index++]) == null);
+            }
+        }
+
+        public boolean advance() {
+            java.util.HashMap.Node<K,V>[] t;
+            java.util.HashMap.Node<K,V> e = next;
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            if ((current = e) == null)
+                return false;
+            if ((next = e.next) == null && (t = table) != null) {
+                do {} while (index < t.length && (next = t[index++]) == null);
+            }
+            return true;
+        }
+
+        public K key() {
+            return node().key;
+        }
+
+        public V value() {
+            return node().value;
+        }
+
+        public V setValue(V value) {
+            java.util.HashMap.Node<K,V> p = node();
+            V oldValue = p.value;
+            p.value = value;
+            valueReplaced(p.key, oldValue, value);
+            return oldValue;
+        }
+
+        // 不移动树形桶的根也不缩容，已经算好的next保持有效
+        public void remove() {
+            java.util.HashMap.Node<K,V> p = node();
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            current = null;
+            removeNode(p.hash, p.key, null, false, false);
+            expectedModCount = modCount;
+        }
+
+        private java.util.HashMap.Node<K,V> node() {
+            java.util.HashMap.Node<K,V> p;
+            if ((p = current) == null)
+                throw new IllegalStateException();
+            return p;
+        }
+    }
     final class KeyIterator extends java.util.HashMap.HashIterator
             implements Iterator<K> {
         public final K next() { return nextNode().key; }
@@ -1073,7 +1858,7 @@ public class HashMap<K,V> extends AbstractMap<K,V>
     }
     final class EntryIterator extends java.util.HashMap.HashIterator
             implements Iterator<java.util.Map.Entry<K,V>> {
-        public final java.util.Map.Entry<K,V> next() { return nextNode(); }
+        public final java.util.Map.Entry<K,V> next() { return exposeEntry(nextNode()); }
     }
     static class HashMapSpliterator<K,V> {
         final java.util.HashMap<K,V> map;
@@ -1286,7 +2071,7 @@ public class HashMap<K,V> extends AbstractMap<K,V>
                     if (p == null)
                         p = tab[i++];
                     else {
-                        action.accept(p);
+                        action.accept(m.exposeEntry(p));
                         p = p.next;
                     }
                 } while (p != null || i < hi);
@@ -1307,7 +2092,7 @@ public class HashMap<K,V> extends AbstractMap<K,V>
                     else {
                         java.util.HashMap.Node<K,V> e = current;
                         current = current.next;
-                        action.accept(e);
+                        action.accept(map.exposeEntry(e));
                         if (map.modCount != expectedModCount)
                             throw new ConcurrentModificationException();
                         return true;
@@ -1323,12 +2108,16 @@ public class HashMap<K,V> extends AbstractMap<K,V>
         }
     }
     java.util.HashMap.Node<K,V> newNode(int hash, K key, V value, java.util.HashMap.Node<K,V> next) {
+        if (bloom != null)
+            bloom.add(hash);
         return new java.util.HashMap.Node<>(hash, key, value, next);
     }
     java.util.HashMap.Node<K,V> replacementNode(java.util.HashMap.Node<K,V> p, java.util.HashMap.Node<K,V> next) {
         return new java.util.HashMap.Node<>(p.hash, p.key, p.value, next);
     }
     java.util.HashMap.TreeNode<K,V> newTreeNode(int hash, K key, V value, java.util.HashMap.Node<K,V> next) {
+        if (bloom != null)
+            bloom.add(hash);
         return new java.util.HashMap.TreeNode<>(hash, key, value, next);
     }
     java.util.HashMap.TreeNode<K,V> replacementTreeNode(java.util.HashMap.Node<K,V> p, java.util.HashMap.Node<K,V> next) {
@@ -1342,6 +2131,11 @@ public class HashMap<K,V> extends AbstractMap<K,V>
         modCount = 0;
         threshold = 0;
         size = 0;
+        mapHash = 0;
+        // 克隆不继承原来的变更流 过滤器在插入完成后重建
+        changeFeed = null;
+        bloom = null;
+        bloomRemovals = 0;
     }
     void afterNodeAccess(java.util.HashMap.Node<K,V> p) { }
     void afterNodeInsertion(boolean evict) { }
@@ -1428,6 +2222,33 @@ public class HashMap<K,V> extends AbstractMap<K,V>
         }
 
 
+        /*
+         * 与find相同，但key用matcher判断。hash相等的节点可能分布在左右两棵子树中，都需要查找
+         */
+        final java.util.HashMap.TreeNode<K,V> findByHash(int h, Predicate<? super K> matcher) {
+            java.util.HashMap.TreeNode<K,V> p = this;
+            do {
+                int ph;
+                java.util.HashMap.TreeNode<K,V> pl = p.left, pr = p.right, q;
+                if ((ph = p.hash) > h)
+                    p = pl;
+                else if (ph < h)
+                    p = pr;
+                else if (matcher.test(p.key))
+                    return p;
+                else if (pl == null)
+                    p = pr;
+                else if (pr == null)
+                    p = pl;
+                else if ((q = pr.findByHash(h, matcher)) != null)
+                    return q;
+                else
+                    p = pl;
+            } while (p != null);
+            return null;
+        }
+
+
         final java.util.HashMap.TreeNode<K,V> getTreeNode(int h, Object k) {
             return ((parent != null) ? root() : this).find(h, k, null);
         }
@@ -1546,6 +2367,72 @@ public class HashMap<K,V> extends AbstractMap<K,V>
         }
 
 
+        /*
+         * 作用：putTreeVal的查找部分，不插入
+         *      找到key时返回该节点；找不到时返回新节点应该挂在其下的父节点，由调用方判断是否命中
+         *      之后用父节点的putTreeChild插入，不需要从根节点重新查找
+         */
+        final java.util.HashMap.TreeNode<K,V> findOrParent(int h, Object k) {
+            Class<?> kc = null;
+            boolean searched = false;
+            java.util.HashMap.TreeNode<K,V> root = (parent != null) ? root() : this;
+            for (java.util.HashMap.TreeNode<K,V> p = root;;) {
+                int dir, ph; K pk;
+                if ((ph = p.hash) > h)
+                    dir = -1;
+                else if (ph < h)
+                    dir = 1;
+                else if ((pk = p.key) == k || (k != null && k.equals(pk)))
+                    return p;
+                else if ((kc == null &&
+                        (kc = comparableClassFor(k)) == null) ||
+                        (dir = compareComparables(kc, k, pk)) == 0) {
+                    if (!searched) {
+                        java.util.HashMap.TreeNode<K,V> q, ch;
+                        searched = true;
+                        if (((ch = p.left) != null &&
+                                (q = ch.find(h, k, kc)) != null) ||
+                                ((ch = p.right) != null &&
+                                        (q = ch.find(h, k, kc)) != null))
+                            return q;
+                    }
+                    dir = tieBreakOrder(k, pk);
+                }
+                java.util.HashMap.TreeNode<K,V> xp = p;
+                if ((p = (dir <= 0) ? p.left : p.right) == null)
+                    return xp;
+            }
+        }
+
+        /*
+         * 作用：把新节点作为this(findOrParent返回的父节点)的子节点插入，方向与findOrParent中的判断一致
+         *      调用前散列表结构不能被修改过
+         */
+        final void putTreeChild(java.util.HashMap<K,V> map, java.util.HashMap.Node<K,V>[] tab,
+                                int h, K k, V v) {
+            int dir, ph; K pk = key;
+            Class<?> kc;
+            if ((ph = hash) > h)
+                dir = -1;
+            else if (ph < h)
+                dir = 1;
+            else if ((kc = comparableClassFor(k)) == null ||
+                    (dir = compareComparables(kc, k, pk)) == 0)
+                dir = tieBreakOrder(k, pk);
+            java.util.HashMap.Node<K,V> xpn = next;
+            java.util.HashMap.TreeNode<K,V> x = map.newTreeNode(h, k, v, xpn);
+            if (dir <= 0)
+                left = x;
+            else
+                right = x;
+            next = x;
+            x.parent = x.prev = this;
+            if (xpn != null)
+                ((java.util.HashMap.TreeNode<K,V>)xpn).prev = x;
+            moveRootToFront(tab, balanceInsertion(root(), x));
+        }
+
+
         final void removeTreeNode(java.util.HashMap<K,V> map, java.util.HashMap.Node<K,V>[] tab,
                                   boolean movable) {
             int n;
@@ -1669,7 +2556,7 @@ public class HashMap<K,V> extends AbstractMap<K,V>
             }
 
             if (loHead != null) {
-                if (lc <= UNTREEIFY_THRESHOLD)
+                if (lc <= map.untreeifyThreshold)
                     tab[index] = loHead.untreeify(map);
                 else {
                     tab[index] = loHead;
@@ -1678,7 +2565,7 @@ public class HashMap<K,V> extends AbstractMap<K,V>
                 }
             }
             if (hiHead != null) {
-                if (hc <= UNTREEIFY_THRESHOLD)
+                if (hc <= map.untreeifyThreshold)
                     tab[index + bit] = hiHead.untreeify(map);
                 else {
                     tab[index + bit] = hiHead;
@@ -0,0 +1,232 @@
+package com.lili.map;
+
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/*
+ * 一个key对应多个value的Map，直接复用HashMap的散列表
+ *
+ * 存储：Node.value中
+ *      只有一个value时直接存放value本身(null用NULL_VALUE代替)
+ *      有多个value时才膨胀成Values，一个紧凑的Object数组，不创建ArrayList
+ *
+ * putMulti只路由一次：getNode查到Node后直接在Node.value上追加，查不到才putVal插入新Node
+ *
+ * 与HashMap一样不是线程安全的
+ */
+public class HashMultimap<K,V> {
+
+    // null value的替身，避免与"key不存在"混淆
+    private static final Object NULL_VALUE = new Object();
+
+    private final HashMap<K,Object> table;
+    // 所有key的value总数
+    private int totalSize;
+
+    public HashMultimap(int expectedKeys) {
+        table = new HashMap<>(expectedKeys);
+    }
+    public HashMultimap() {
+        table = new HashMap<>();
+    }
+
+    static Object maskNull(Object value) {
+        return (value == null) ? NULL_VALUE : value;
+    }
+    @SuppressWarnings("unchecked")
+    static <V> V unmaskNull(Object value) {
+        return (value == NULL_VALUE) ? null : (V) value;
+    }
+
+    // value总数
+    public int size() {
+        return totalSize;
+    }
+    // key的个数
+    public int keyCount() {
+        return table.size();
+    }
+    public boolean isEmpty() {
+        return totalSize == 0;
+    }
+    public boolean containsKey(Object key) {
+        return table.containsKey(key);
+    }
+    public void clear() {
+        table.clear();
+        totalSize = 0;
+    }
+
+    /*
+     * 作用：给key追加一个value，同一个value可以重复追加
+     */
+    public void putMulti(K key, V value) {
+        int hash = table.hash(key);
+        HashMap.Node<K,Object> e = table.getNode(hash, key);
+        Object v = maskNull(value);
+        if (e == null)
+            table.putVal(hash, key, v, false, true);
+        else if (e.value instanceof Values)
+            ((Values) e.value).add(v);
+        else
+            e.value = new Values(e.value, v);
+        ++totalSize;
+    }
+
+    // key对应的value个数
+    public int valueCount(Object key) {
+        HashMap.Node<K,Object> e = table.getNode(table.hash(key), key);
+        return (e == null) ? 0 :
+                (e.value instanceof Values) ? ((Values) e.value).size : 1;
+    }
+
+    /*
+     * 作用：遍历key对应的所有value，不创建任何中间集合
+     */
+    public void forEachValue(Object key, Consumer<? super V> action) {
+        Objects.requireNonNull(action);
+        HashMap.Node<K,Object> e = table.getNode(table.hash(key), key);
+        if (e == null)
+            return;
+        Object v = e.value;
+        if (v instanceof Values) {
+            Values vs = (Values) v;
+            Object[] a = vs.elements;
+            for (int i = 0, n = vs.size; i < n; ++i)
+                action.accept(unmaskNull(a[i]));
+        }
+        else
+            action.accept(unmaskNull(v));
+    }
+
+    /*
+     * 作用：返回key对应的所有value的不可变快照，key不存在时返回空List
+     */
+    public List<V> getAll(Object key) {
+        HashMap.Node<K,Object> e = table.getNode(table.hash(key), key);
+        if (e == null)
+            return Collections.emptyList();
+        Object v = e.value;
+        if (!(v instanceof Values))
+            return Collections.singletonList(unmaskNull(v));
+        Values vs = (Values) v;
+        Object[] a = new Object[vs.size];
+        for (int i = 0; i < a.length; ++i)
+            a[i] = unmaskNull(vs.elements[i]);
+        @SuppressWarnings("unchecked")
+        List<V> list = (List<V>) Arrays.asList(a);
+        return Collections.unmodifiableList(list);
+    }
+
+    /*
+     * 作用：删除key及其所有value，返回被删除的value个数
+     */
+    public int removeAll(Object key) {
+        HashMap.Node<K,Object> e = table.removeNode(table.hash(key), key, null, false, true);
+        if (e == null)
+            return 0;
+        int n = (e.value instanceof Values) ? ((Values) e.value).size : 1;
+        totalSize -= n;
+        return n;
+    }
+
+    /*
+     * 作用：删除key的一个与value相等的值，只剩一个值时收缩回内联存储，一个都不剩时删除key
+     */
+    public boolean remove(Object key, Object value) {
+        int hash = table.hash(key);
+        HashMap.Node<K,Object> e = table.getNode(hash, key);
+        if (e == null)
+            return false;
+        Object m = maskNull(value), v = e.value;
+        if (v instanceof Values) {
+            Values vs = (Values) v;
+            if (!vs.remove(m))
+                return false;
+            if (vs.size == 1)
+                e.value = vs.elements[0];
+        }
+        else if (m.equals(v))
+            table.removeNode(hash, key, null, false, true);
+        else
+            return false;
+        --totalSize;
+        return true;
+    }
+
+    public boolean containsEntry(Object key, Object value) {
+        HashMap.Node<K,Object> e = table.getNode(table.hash(key), key);
+        if (e == null)
+            return false;
+        Object m = maskNull(value), v = e.value;
+        return (v instanceof Values) ? ((Values) v).indexOf(m) >= 0 : m.equals(v);
+    }
+
+    // 只读视图，所有修改都要经过HashMultimap以保证totalSize正确
+    public Set<K> keySet() {
+        return Collections.unmodifiableSet(table.keySet());
+    }
+
+    /*
+     * 作用：遍历所有key-value对，一个key有多个value时会被回调多次
+     */
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        Objects.requireNonNull(action);
+        table.forEach((k, v) -> {
+            if (v instanceof Values) {
+                Values vs = (Values) v;
+                for (int i = 0; i < vs.size; ++i)
+                    action.accept(k, unmaskNull(vs.elements[i]));
+            }
+            else
+                action.accept(k, unmaskNull(v));
+        });
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        table.forEach((k, v) -> {
+            if (sb.length() > 1)
+                sb.append(", ");
+            sb.append(k).append('=').append(getAll(k));
+        });
+        return sb.append('}').toString();
+    }
+
+    /*
+     * 多个value时的紧凑存储，膨胀时容量为2，之后按1.5倍增长
+     */
+    static final class Values {
+        Object[] elements;
+        int size;
+
+        Values(Object first, Object second) {
+            elements = new Object[] { first, second };
+            size = 2;
+        }
+
+        void add(Object v) {
+            if (size == elements.length)
+                elements = Arrays.copyOf(elements, size + (size >> 1));
+            elements[size++] = v;
+        }
+
+        int indexOf(Object v) {
+            for (int i = 0; i < size; ++i) {
+                if (v.equals(elements[i]))
+                    return i;
+            }
+            return -1;
+        }
+
+        boolean remove(Object v) {
+            int i = indexOf(v);
+            if (i < 0)
+                return false;
+            System.arraycopy(elements, i + 1, elements, i, size - i - 1);
+            elements[--size] = null;
+            return true;
+        }
+    }
+}
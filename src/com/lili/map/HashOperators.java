@@ -0,0 +1,447 @@
+package com.lili.map;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collector;
+import java.util.stream.Stream;
+
+/*
+ * 基于散列表的group-by和hash join算子，代替手写的merge循环和build-then-probe循环
+ *
+ * 执行分两个阶段(Grace hash)：
+ *      分区：在调用线程中顺序消费输入Stream，按key的hash高位分到partitions个分区，行先缓存在分区的ArrayList中
+ *           所有分区缓存的行数超过memoryBudgetRows时，把缓存最多的分区编码后写到spillDir下的临时文件，
+ *           这个分区之后的行直接追加到文件；没有给Codec的输入不溢出
+ *      计算：每个分区是一个ForkJoinTask，读回溢出的行，在按行数预分配的散列表中聚合/连接，分区之间没有共享状态
+ *           分区内HashMap用hash低位路由，与分区使用的高位错开
+ * 溢出的分区在计算时整体读回内存，严重倾斜(一个分区就超过预算)时不会再次递归分区
+ *
+ * groupBy：聚合用java.util.stream.Collector描述，不要求combiner，每个分组只在一个分区内累加
+ * groupByLong：key是long时分区内用LongIntHashMap(key -> 分组下标)，累加过程不装箱，只在输出时装箱
+ * hashJoin：内连接，build侧在分区内建成HashMap(key -> 最后一行下标)加int[] next链，probe侧逐行查找
+ *      key为null的行不参与连接
+ *
+ * 每次调用是独立的，实例本身不保存状态，可以被多个线程同时使用
+ */
+public class HashOperators {
+
+    static final int DEFAULT_PARTITIONS = 64;
+
+    private final ForkJoinPool pool;
+    private final int partitions;
+    private final int partitionShift;
+    private final long memoryBudgetRows;
+    private final Path spillDir;
+
+    // 使用公共ForkJoinPool，不溢出
+    public HashOperators() {
+        this(ForkJoinPool.commonPool(), DEFAULT_PARTITIONS, Long.MAX_VALUE, null);
+    }
+
+    /*
+     * 参数：partitions        分区数，取整到2的幂，同时也是计算阶段的并行任务数
+     *      memoryBudgetRows   分区阶段内存中最多缓存的行数，超过后溢出
+     *      spillDir           溢出文件所在目录，为null时不溢出
+     */
+    public HashOperators(ForkJoinPool pool, int partitions, long memoryBudgetRows, Path spillDir) {
+        if (partitions <= 0 || partitions > (1 << 16))
+            throw new IllegalArgumentException("Illegal partitions: " + partitions);
+        if (memoryBudgetRows <= 0L)
+            throw new IllegalArgumentException("Illegal memory budget: " + memoryBudgetRows);
+        this.pool = Objects.requireNonNull(pool);
+        this.partitions = HashMap.tableSizeFor(partitions);
+        this.partitionShift = 32 - Integer.numberOfTrailingZeros(this.partitions);
+        this.memoryBudgetRows = memoryBudgetRows;
+        this.spillDir = spillDir;
+    }
+
+    // 分区下标取乘法扰动后hash的高位
+    private int partitionOf(int h) {
+        return (partitions == 1) ? 0 : (h * 0x9E3779B9) >>> partitionShift;
+    }
+
+    private int partitionOf(Object key) {
+        return partitionOf((key == null) ? 0 : key.hashCode());
+    }
+
+    private int partitionOf(long key) {
+        return partitionOf((int) (key ^ (key >>> 32)));
+    }
+
+    // 按行数预分配，散列表在聚合/建表过程中不扩容
+    static int capacityFor(int rows) {
+        return (int) Math.min(rows / 0.75f + 1.0f, 1 << 30);
+    }
+
+    /*
+     * 作用：按keyFn分组，每组用aggregator聚合，等价于input.collect(Collectors.groupingBy(keyFn, aggregator))
+     *      codec不为null时允许溢出
+     */
+    public <T,K,A,R> java.util.Map<K,R> groupBy(Stream<T> input, Function<? super T, ? extends K> keyFn,
+                                                Collector<? super T, A, R> aggregator,
+                                                DurableHashMap.Codec<T> codec) {
+        Objects.requireNonNull(keyFn);
+        Objects.requireNonNull(aggregator);
+        Partitioned<T> rows = new Partitioned<>(codec);
+        try {
+            input.sequential().forEach(t -> {
+                rows.add(partitionOf(keyFn.apply(t)), t);
+                spillIfOverBudget(rows, null);
+            });
+            rows.finish();
+            List<ForkJoinTask<HashMap<K,R>>> tasks = new ArrayList<>(partitions);
+            for (int p = 0; p < partitions; ++p) {
+                final int part = p;
+                tasks.add(pool.submit(() -> aggregate(rows.load(part), keyFn, aggregator)));
+            }
+            List<HashMap<K,R>> results = joinAll(tasks);
+            int groups = 0;
+            for (HashMap<K,R> m : results)
+                groups += m.size();
+            HashMap<K,R> out = new HashMap<>(capacityFor(groups));
+            for (HashMap<K,R> m : results)
+                out.putAll(m);
+            return out;
+        } finally {
+            rows.delete();
+        }
+    }
+
+    public <T,K,A,R> java.util.Map<K,R> groupBy(Stream<T> input, Function<? super T, ? extends K> keyFn,
+                                                Collector<? super T, A, R> aggregator) {
+        return groupBy(input, keyFn, aggregator, null);
+    }
+
+    private static <T,K,A,R> HashMap<K,R> aggregate(List<T> rows, Function<? super T, ? extends K> keyFn,
+                                                    Collector<? super T, A, R> aggregator) {
+        Supplier<A> supplier = aggregator.supplier();
+        BiConsumer<A, ? super T> accumulator = aggregator.accumulator();
+        HashMap<K,A> acc = new HashMap<>(capacityFor(rows.size()));
+        // 一次探测取得或创建累加容器，Collector的supplier总是返回新的非null容器
+        for (T t : rows)
+            accumulator.accept(acc.computeIfAbsent(keyFn.apply(t), k -> supplier.get()), t);
+        return finish(acc, aggregator);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K,A,R> HashMap<K,R> finish(HashMap<K,A> acc, Collector<?, A, R> aggregator) {
+        if (!aggregator.characteristics().contains(Collector.Characteristics.IDENTITY_FINISH)) {
+            Function<A,R> finisher = aggregator.finisher();
+            ((HashMap<K,Object>) (HashMap<K,?>) acc).replaceAll((k, a) -> finisher.apply((A) a));
+        }
+        return (HashMap<K,R>) (HashMap<K,?>) acc;
+    }
+
+    /*
+     * 作用：key是long的groupBy，分区内用LongIntHashMap把key映射到分组下标，累加过程不装箱
+     */
+    public <T,A,R> java.util.Map<Long,R> groupByLong(Stream<T> input, ToLongFunction<? super T> keyFn,
+                                                     Collector<? super T, A, R> aggregator,
+                                                     DurableHashMap.Codec<T> codec) {
+        Objects.requireNonNull(keyFn);
+        Objects.requireNonNull(aggregator);
+        Partitioned<T> rows = new Partitioned<>(codec);
+        try {
+            input.sequential().forEach(t -> {
+                rows.add(partitionOf(keyFn.applyAsLong(t)), t);
+                spillIfOverBudget(rows, null);
+            });
+            rows.finish();
+            List<ForkJoinTask<HashMap<Long,R>>> tasks = new ArrayList<>(partitions);
+            for (int p = 0; p < partitions; ++p) {
+                final int part = p;
+                tasks.add(pool.submit(() -> aggregateLong(rows.load(part), keyFn, aggregator)));
+            }
+            List<HashMap<Long,R>> results = joinAll(tasks);
+            int groups = 0;
+            for (HashMap<Long,R> m : results)
+                groups += m.size();
+            HashMap<Long,R> out = new HashMap<>(capacityFor(groups));
+            for (HashMap<Long,R> m : results)
+                out.putAll(m);
+            return out;
+        } finally {
+            rows.delete();
+        }
+    }
+
+    private static <T,A,R> HashMap<Long,R> aggregateLong(List<T> rows, ToLongFunction<? super T> keyFn,
+                                                         Collector<? super T, A, R> aggregator) {
+        Supplier<A> supplier = aggregator.supplier();
+        BiConsumer<A, ? super T> accumulator = aggregator.accumulator();
+        LongIntHashMap index = new LongIntHashMap(rows.size());
+        long[] keys = new long[Math.max(rows.size(), 1)];
+        List<A> groups = new ArrayList<>();
+        for (T t : rows) {
+            long k = keyFn.applyAsLong(t);
+            // 分组下标存为下标+1，0表示不存在
+            int g = index.getOrDefault(k, 0) - 1;
+            if (g < 0) {
+                g = groups.size();
+                groups.add(supplier.get());
+                keys[g] = k;
+                index.put(k, g + 1);
+            }
+            accumulator.accept(groups.get(g), t);
+        }
+        HashMap<Long,A> acc = new HashMap<>(capacityFor(groups.size()));
+        for (int g = 0; g < groups.size(); ++g)
+            acc.put(keys[g], groups.get(g));
+        return finish(acc, aggregator);
+    }
+
+    /*
+     * 作用：内连接，对每一对key相等的(b, p)输出joiner.apply(b, p)，结果顺序不确定
+     *      先完整消费build再消费probe；两侧共用memoryBudgetRows，buildCodec/probeCodec为null的一侧不溢出
+     */
+    public <B,P,K,R> List<R> hashJoin(Stream<B> build, Function<? super B, ? extends K> buildKey,
+                                      Stream<P> probe, Function<? super P, ? extends K> probeKey,
+                                      BiFunction<? super B, ? super P, ? extends R> joiner,
+                                      DurableHashMap.Codec<B> buildCodec, DurableHashMap.Codec<P> probeCodec) {
+        Objects.requireNonNull(buildKey);
+        Objects.requireNonNull(probeKey);
+        Objects.requireNonNull(joiner);
+        Partitioned<B> left = new Partitioned<>(buildCodec);
+        Partitioned<P> right = new Partitioned<>(probeCodec);
+        try {
+            build.sequential().forEach(b -> {
+                K k = buildKey.apply(b);
+                if (k != null) {
+                    left.add(partitionOf(k), b);
+                    spillIfOverBudget(left, right);
+                }
+            });
+            probe.sequential().forEach(p -> {
+                K k = probeKey.apply(p);
+                if (k != null) {
+                    right.add(partitionOf(k), p);
+                    spillIfOverBudget(left, right);
+                }
+            });
+            left.finish();
+            right.finish();
+            List<ForkJoinTask<List<R>>> tasks = new ArrayList<>(partitions);
+            for (int p = 0; p < partitions; ++p) {
+                final int part = p;
+                tasks.add(pool.submit(() ->
+                        joinPartition(left.load(part), buildKey, right.load(part), probeKey, joiner)));
+            }
+            List<List<R>> results = joinAll(tasks);
+            int n = 0;
+            for (List<R> l : results)
+                n += l.size();
+            List<R> out = new ArrayList<>(n);
+            for (List<R> l : results)
+                out.addAll(l);
+            return out;
+        } finally {
+            left.delete();
+            right.delete();
+        }
+    }
+
+    public <B,P,K,R> List<R> hashJoin(Stream<B> build, Function<? super B, ? extends K> buildKey,
+                                      Stream<P> probe, Function<? super P, ? extends K> probeKey,
+                                      BiFunction<? super B, ? super P, ? extends R> joiner) {
+        return hashJoin(build, buildKey, probe, probeKey, joiner, null, null);
+    }
+
+    /*
+     * 作用：一个分区内的连接
+     *      head: key -> 最后一个该key的build行下标，next[i]是同一key的前一行，-1结束，每个key只有一个Node
+     */
+    private static <B,P,K,R> List<R> joinPartition(List<B> build, Function<? super B, ? extends K> buildKey,
+                                                   List<P> probe, Function<? super P, ? extends K> probeKey,
+                                                   BiFunction<? super B, ? super P, ? extends R> joiner) {
+        List<R> out = new ArrayList<>();
+        if (build.isEmpty() || probe.isEmpty())
+            return out;
+        int n = build.size();
+        HashMap<K,Integer> head = new HashMap<>(capacityFor(n));
+        int[] next = new int[n];
+        for (int i = 0; i < n; ++i) {
+            Integer prev = head.put(buildKey.apply(build.get(i)), i);
+            next[i] = (prev == null) ? -1 : prev;
+        }
+        for (P p : probe) {
+            Integer h = head.get(probeKey.apply(p));
+            if (h != null) {
+                for (int i = h; i >= 0; i = next[i])
+                    out.add(joiner.apply(build.get(i), p));
+            }
+        }
+        return out;
+    }
+
+    /*
+     * 作用：等待所有分区任务结束，再按顺序取结果，有任务失败时抛出第一个失败的异常
+     *      调用方在finally中删除溢出文件，必须等所有任务都不再读文件；ForkJoinTask.cancel不会停止正在执行的任务，
+     *      只会让它提前显示为完成，所以这里不取消，而是逐个quietlyJoin
+     */
+    private static <V> List<V> joinAll(List<ForkJoinTask<V>> tasks) {
+        for (ForkJoinTask<V> t : tasks)
+            t.quietlyJoin();
+        List<V> results = new ArrayList<>(tasks.size());
+        for (ForkJoinTask<V> t : tasks)
+            results.add(t.join());
+        return results;
+    }
+
+    /*
+     * 作用：两侧缓存的行数之和超过预算时，溢出缓存最多的分区，直到回到预算以内
+     *      可以溢出的一侧(有Codec)才参与选择
+     *      两侧都没有可溢出的缓存行时直接返回，不扫描分区，否则只有不可溢出的一侧超预算时每一行都要扫描一遍
+     */
+    private void spillIfOverBudget(Partitioned<?> a, Partitioned<?> b) {
+        while (a.buffered + ((b == null) ? 0L : b.buffered) > memoryBudgetRows) {
+            if (a.spillableRows() == 0L && (b == null || b.spillableRows() == 0L))
+                return;
+            int pa = a.largest(), pb = (b == null) ? -1 : b.largest();
+            int na = (pa < 0) ? 0 : a.buffers[pa].size(), nb = (pb < 0) ? 0 : b.buffers[pb].size();
+            if (na == 0 && nb == 0)
+                return;
+            if (na >= nb)
+                a.spill(pa);
+            else
+                b.spill(pb);
+        }
+    }
+
+    /*
+     * 一侧输入的分区缓存，溢出文件格式：int 长度 | codec编码的行，长度为-1表示null
+     */
+    final class Partitioned<T> {
+        final DurableHashMap.Codec<T> codec;
+        final ArrayList<T>[] buffers;
+        final Path[] files;
+        final DataOutputStream[] outs;
+        long buffered;
+
+        @SuppressWarnings("unchecked")
+        Partitioned(DurableHashMap.Codec<T> codec) {
+            this.codec = (spillDir == null) ? null : codec;
+            buffers = (ArrayList<T>[]) new ArrayList<?>[partitions];
+            for (int p = 0; p < partitions; ++p)
+                buffers[p] = new ArrayList<>();
+            files = new Path[partitions];
+            outs = new DataOutputStream[partitions];
+        }
+
+        void add(int p, T row) {
+            if (outs[p] != null)
+                write(outs[p], row);
+            else {
+                buffers[p].add(row);
+                ++buffered;
+            }
+        }
+
+        // 还可以溢出的缓存行数，没有Codec时为0
+        long spillableRows() {
+            return (codec == null) ? 0L : buffered;
+        }
+
+        // 可以溢出的缓存中最大的分区，不能溢出时返回-1
+        int largest() {
+            if (codec == null)
+                return -1;
+            int best = -1;
+            for (int p = 0, max = 0; p < partitions; ++p) {
+                if (buffers[p].size() > max) {
+                    max = buffers[p].size();
+                    best = p;
+                }
+            }
+            return best;
+        }
+
+        void spill(int p) {
+            try {
+                files[p] = Files.createTempFile(spillDir, "partition", ".spill");
+                outs[p] = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(files[p]), 1 << 16));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            ArrayList<T> rows = buffers[p];
+            for (T row : rows)
+                write(outs[p], row);
+            buffered -= rows.size();
+            buffers[p] = new ArrayList<>();
+        }
+
+        private void write(DataOutputStream out, T row) {
+            try {
+                if (row == null)
+                    out.writeInt(-1);
+                else {
+                    byte[] b = codec.encode(row);
+                    out.writeInt(b.length);
+                    out.write(b);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void finish() {
+            try {
+                for (DataOutputStream out : outs) {
+                    if (out != null)
+                        out.close();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        // 分区的全部行，溢出的行追加在缓存之后；计算任务各自加载不同分区，互不干扰
+        List<T> load(int p) {
+            ArrayList<T> rows = buffers[p];
+            buffers[p] = null;
+            if (files[p] == null)
+                return rows;
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(files[p]), 1 << 16))) {
+                for (;;) {
+                    int len;
+                    try {
+                        len = in.readInt();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    if (len < 0)
+                        rows.add(null);
+                    else {
+                        byte[] b = new byte[len];
+                        in.readFully(b);
+                        rows.add(codec.decode(b));
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return rows;
+        }
+
+        void delete() {
+            for (int p = 0; p < partitions; ++p) {
+                try {
+                    if (outs[p] != null)
+                        outs[p].close();
+                    if (files[p] != null)
+                        Files.deleteIfExists(files[p]);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
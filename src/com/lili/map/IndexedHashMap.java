@@ -0,0 +1,288 @@
+package com.lili.map;
+
+import java.util.*;
+import java.util.function.Function;
+
+/*
+ * 带二级索引的HashMap，点查询走HashMap本身，范围/Top-N/前缀查询走二级索引
+ *
+ * 索引按extractor从value中取出属性，属性到key的映射保存在：
+ *      SortedIndex  TreeMap<A, key或key集合>，支持范围、Top-N、前缀查询
+ *      HashIndex    HashMap<A, key或key集合>，支持按属性等值查询
+ *      一个属性只对应一个key时直接存放key，多个key时才换成Keys(HashSet)
+ *
+ * 同步维护：覆盖HashMap的nodeInserted/valueReplaced/nodeRemoved，putVal/removeNode/replace/compute系列/merge/
+ *      replaceAll/迭代器删除/Entry.setValue之后立即更新所有索引，不需要调用方额外加锁或手工同步
+ *      value对象本身被原地修改(不经过Map)时索引无法感知，被索引的属性应当不可变，修改时重新put
+ * extractor返回null的value不进入索引
+ *
+ * 索引不参与序列化，反序列化和clone得到的Map上索引定义相同、内容重新建立(clone)或为空(反序列化)
+ * 与HashMap一样不是线程安全的
+ */
+public class IndexedHashMap<K,V> extends HashMap<K,V> {
+
+    private static final long serialVersionUID = 1L;
+
+    // 单个null key在桶中的替身，避免与"属性不存在"混淆
+    private static final Object NULL_KEY = new Object();
+
+    private transient List<Index<?>> indexes = new ArrayList<>();
+
+    public IndexedHashMap() {
+        super();
+    }
+    public IndexedHashMap(int initialCapacity) {
+        super(initialCapacity);
+    }
+
+    static Object mask(Object key) {
+        return (key == null) ? NULL_KEY : key;
+    }
+    @SuppressWarnings("unchecked")
+    static <K> K unmask(Object key) {
+        return (key == NULL_KEY) ? null : (K) key;
+    }
+
+    /*
+     * 作用：按extractor取出的属性建立有序索引，comparator为null时按属性的自然顺序
+     *      建立时遍历一次现有映射
+     */
+    public <A> SortedIndex<A> addSortedIndex(Function<? super V, ? extends A> extractor,
+                                             Comparator<? super A> comparator) {
+        return addIndex(new SortedIndex<A>(extractor, comparator));
+    }
+
+    public <A> HashIndex<A> addHashIndex(Function<? super V, ? extends A> extractor) {
+        return addIndex(new HashIndex<A>(extractor));
+    }
+
+    private <I extends Index<?>> I addIndex(I index) {
+        forEach(index::add);
+        indexes.add(index);
+        return index;
+    }
+
+    public boolean removeIndex(Index<?> index) {
+        return indexes.remove(index);
+    }
+
+    public List<Index<?>> indexes() {
+        return Collections.unmodifiableList(indexes);
+    }
+
+    void valueReplaced(K key, V oldValue, V newValue) {
+        super.valueReplaced(key, oldValue, newValue);
+        for (Index<?> index : indexes)
+            index.replace(key, oldValue, newValue);
+    }
+    void nodeInserted(K key, V value) {
+        super.nodeInserted(key, value);
+        for (Index<?> index : indexes)
+            index.add(key, value);
+    }
+    void nodeRemoved(K key, V value) {
+        super.nodeRemoved(key, value);
+        for (Index<?> index : indexes)
+            index.remove(key, value);
+    }
+    boolean observesValues() {
+        return !indexes.isEmpty();
+    }
+
+    public void clear() {
+        super.clear();
+        for (Index<?> index : indexes)
+            index.buckets.clear();
+    }
+
+    // clone和readObject在重新插入映射之前调用，换成同样定义的空索引
+    void reinitialize() {
+        super.reinitialize();
+        List<Index<?>> old = indexes;
+        indexes = new ArrayList<>();
+        if (old != null) {
+            for (Index<?> index : old)
+                indexes.add(emptyCopy(index));
+        }
+    }
+
+    // 在this上创建定义相同的空索引，old可能属于另一个Map(clone的来源)
+    private <A> Index<A> emptyCopy(Index<A> old) {
+        if (old instanceof SortedIndex)
+            return new SortedIndex<A>(old.extractor, ((SortedIndex<A>) old).comparator);
+        return new HashIndex<A>(old.extractor);
+    }
+
+    /*
+     * 索引公共部分：属性到key(或key集合)的映射
+     */
+    public abstract class Index<A> {
+        final Function<? super V, ? extends A> extractor;
+        final java.util.Map<A,Object> buckets;
+
+        Index(Function<? super V, ? extends A> extractor, java.util.Map<A,Object> buckets) {
+            this.extractor = Objects.requireNonNull(extractor);
+            this.buckets = buckets;
+        }
+
+        final void add(K key, V value) {
+            A a;
+            if (value == null || (a = extractor.apply(value)) == null)
+                return;
+            Object b = buckets.get(a);
+            if (b == null)
+                buckets.put(a, mask(key));
+            else if (b instanceof Keys)
+                keySet(b).add(key);
+            else {
+                Keys<K> keys = new Keys<>();
+                keys.add(unmask(b));
+                keys.add(key);
+                buckets.put(a, keys);
+            }
+        }
+
+        final void remove(K key, V value) {
+            A a;
+            if (value == null || (a = extractor.apply(value)) == null)
+                return;
+            Object b = buckets.get(a);
+            if (b instanceof Keys) {
+                Set<K> keys = keySet(b);
+                keys.remove(key);
+                if (keys.size() == 1)
+                    buckets.put(a, mask(keys.iterator().next()));
+            }
+            else if (b != null)
+                buckets.remove(a);
+        }
+
+        final void replace(K key, V oldValue, V newValue) {
+            A a0 = (oldValue == null) ? null : extractor.apply(oldValue);
+            A a1 = (newValue == null) ? null : extractor.apply(newValue);
+            if (!Objects.equals(a0, a1)) {
+                remove(key, oldValue);
+                add(key, newValue);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        final Set<K> keySet(Object bucket) {
+            return (Set<K>) bucket;
+        }
+
+        // 把一个桶中的key追加到out，out达到limit时停止，返回是否还能继续
+        final boolean collect(Object bucket, List<K> out, int limit) {
+            if (!(bucket instanceof Keys)) {
+                out.add(unmask(bucket));
+            } else {
+                for (K k : keySet(bucket)) {
+                    if (out.size() >= limit)
+                        break;
+                    out.add(k);
+                }
+            }
+            return out.size() < limit;
+        }
+
+        // 属性等于a的所有key
+        public List<K> keysFor(A a) {
+            Object b = buckets.get(a);
+            if (b == null)
+                return Collections.emptyList();
+            if (!(b instanceof Keys))
+                return Collections.singletonList(unmask(b));
+            return new ArrayList<>(keySet(b));
+        }
+
+        // 不同属性值的个数
+        public int distinctValues() {
+            return buckets.size();
+        }
+    }
+
+    /*
+     * 有序索引，查询只访问结果所在的TreeMap区间
+     */
+    public final class SortedIndex<A> extends Index<A> {
+        final Comparator<? super A> comparator;
+
+        SortedIndex(Function<? super V, ? extends A> extractor, Comparator<? super A> comparator) {
+            super(extractor, new TreeMap<A,Object>(comparator));
+            this.comparator = comparator;
+        }
+
+        @SuppressWarnings("unchecked")
+        NavigableMap<A,Object> tree() {
+            return (NavigableMap<A,Object>) buckets;
+        }
+
+        /*
+         * 作用：属性在[from, to]区间内的key，按属性升序；inclusive控制端点是否包含
+         */
+        public List<K> range(A from, boolean fromInclusive, A to, boolean toInclusive) {
+            List<K> out = new ArrayList<>();
+            for (Object b : tree().subMap(from, fromInclusive, to, toInclusive).values())
+                collect(b, out, Integer.MAX_VALUE);
+            return out;
+        }
+
+        // 属性最小的n个key
+        public List<K> first(int n) {
+            return take(tree().values(), n);
+        }
+
+        // 属性最大的n个key，按属性降序
+        public List<K> last(int n) {
+            return take(tree().descendingMap().values(), n);
+        }
+
+        private List<K> take(Collection<Object> buckets, int n) {
+            if (n <= 0)
+                return Collections.emptyList();
+            List<K> out = new ArrayList<>(Math.min(n, size()));
+            for (Object b : buckets) {
+                if (!collect(b, out, n))
+                    break;
+            }
+            return out;
+        }
+
+        /*
+         * 作用：字符串属性以prefix开头的key，只能用于按自然顺序排序的String属性
+         *      从tailMap(prefix)开始向后扫描，遇到第一个不以prefix开头的属性就停止
+         */
+        public List<K> prefix(String prefix) {
+            if (comparator != null)
+                throw new UnsupportedOperationException("prefix query needs natural String order");
+            @SuppressWarnings("unchecked")
+            NavigableMap<String,Object> t = (NavigableMap<String,Object>) tree();
+            List<K> out = new ArrayList<>();
+            for (java.util.Map.Entry<String,Object> e : t.tailMap(prefix, true).entrySet()) {
+                if (!e.getKey().startsWith(prefix))
+                    break;
+                collect(e.getValue(), out, Integer.MAX_VALUE);
+            }
+            return out;
+        }
+    }
+
+    /*
+     * 按属性散列的索引，只支持等值查询(keysFor)
+     */
+    public final class HashIndex<A> extends Index<A> {
+        HashIndex(Function<? super V, ? extends A> extractor) {
+            super(extractor, new HashMap<A,Object>());
+        }
+
+    }
+
+    // 一个属性对应多个key时的key集合，用私有类型与直接存放的单个key区分开(key本身可能就是一个Set)
+    static final class Keys<K> extends HashSet<K> {
+        private static final long serialVersionUID = 1L;
+
+        Keys() {
+            super(4);
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package com.lili.map;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/*
+ * key是long、value是int的开放寻址散列表，不装箱，提供按列批量查找/插入，用于大数组key的join探测
+ *
+ * 布局：long[] keys与int[] vals平行，线性探测，容量是2的幂，负载因子0.75
+ *      key为0的槽位表示空，真正的key 0单独保存在hasZeroKey/zeroValue中
+ *      槽位下标 = (key * 0x9E3779B97F4A7C15) >>> shift，乘法扰动后取高位
+ * 删除：与FlatHashMap.removeAt相同，把同一簇中后面的元素前移，不使用墓碑
+ *
+ * 批量接口分两趟，每BATCH个key一组：
+ *      第一趟只计算槽位下标写入slots数组，循环体只有乘法和移位，没有分支和访存依赖，可以被JIT自动向量化
+ *      接着按slots把每个槽位读一遍，相当于软件预取，一组内的读彼此独立，多次缓存未命中可以重叠
+ *      第二趟按slots探测，这时槽位大多已经在缓存中
+ *      insert在开始前按size + keys.length一次扩容到位，之后算出的槽位下标不会失效
+ *
+ * 与HashMap一样不是线程安全的
+ */
+public class LongIntHashMap {
+
+    static final float LOAD_FACTOR = 0.75f;
+    static final int MAXIMUM_CAPACITY = 1 << 30;
+    static final int MIN_CAPACITY = 16;
+    static final int BATCH = 256;
+    static final long GOLDEN = 0x9E3779B97F4A7C15L;
+
+    private long[] keys;
+    private int[] vals;
+    private int shift;
+    private int threshold;
+    private int size;                   // 包括key 0
+    private boolean hasZeroKey;
+    private int zeroValue;
+    private final int[] slots = new int[BATCH];
+    private long touched;               // 预取结果写到字段里，避免JIT把预取循环当作死代码删掉
+
+    public LongIntHashMap() {
+        this(MIN_CAPACITY);
+    }
+    public LongIntHashMap(int expectedSize) {
+        if (expectedSize < 0)
+            throw new IllegalArgumentException("Illegal initial capacity: " + expectedSize);
+        allocate(capacityFor(expectedSize));
+    }
+
+    static int capacityFor(int expectedSize) {
+        long n = (long) Math.ceil(expectedSize / (double) LOAD_FACTOR) + 1;
+        return (n >= MAXIMUM_CAPACITY) ? MAXIMUM_CAPACITY :
+                Math.max(MIN_CAPACITY, HashMap.tableSizeFor((int) n));
+    }
+
+    private void allocate(int n) {
+        keys = new long[n];
+        vals = new int[n];
+        shift = Long.SIZE - Integer.numberOfTrailingZeros(n);
+        threshold = (n == MAXIMUM_CAPACITY) ? n - 1 : (int) (n * LOAD_FACTOR);
+    }
+
+    final int slotFor(long key) {
+        return (int) ((key * GOLDEN) >>> shift);
+    }
+
+    // 返回key所在槽位，不存在时返回-1，key不能为0
+    private int indexOf(long key) {
+        long[] ks = keys;
+        int mask = ks.length - 1;
+        for (int i = slotFor(key); ; i = (i + 1) & mask) {
+            long k = ks[i];
+            if (k == key)
+                return i;
+            if (k == 0L)
+                return -1;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean containsKey(long key) {
+        return (key == 0L) ? hasZeroKey : indexOf(key) >= 0;
+    }
+
+    public int getOrDefault(long key, int defaultValue) {
+        if (key == 0L)
+            return hasZeroKey ? zeroValue : defaultValue;
+        int i = indexOf(key);
+        return (i < 0) ? defaultValue : vals[i];
+    }
+
+    /*
+     * 作用：放入映射，返回旧value，不存在时返回0，需要区分时先调用containsKey
+     */
+    public int put(long key, int value) {
+        if (key == 0L) {
+            int old = zeroValue;
+            if (!hasZeroKey) {
+                hasZeroKey = true;
+                ++size;
+                old = 0;
+            }
+            zeroValue = value;
+            return old;
+        }
+        if (size >= threshold)
+            resize(keys.length << 1);
+        return putAt(slotFor(key), key, value);
+    }
+
+    // 从槽位i开始探测并放入，调用方保证不需要扩容
+    private int putAt(int i, long key, int value) {
+        long[] ks = keys;
+        int mask = ks.length - 1;
+        for (; ; i = (i + 1) & mask) {
+            long k = ks[i];
+            if (k == key) {
+                int old = vals[i];
+                vals[i] = value;
+                return old;
+            }
+            if (k == 0L) {
+                ks[i] = key;
+                vals[i] = value;
+                ++size;
+                return 0;
+            }
+        }
+    }
+
+    public boolean remove(long key) {
+        if (key == 0L) {
+            if (!hasZeroKey)
+                return false;
+            hasZeroKey = false;
+            zeroValue = 0;
+            --size;
+            return true;
+        }
+        int i = indexOf(key);
+        if (i < 0)
+            return false;
+        removeAt(i);
+        --size;
+        return true;
+    }
+
+    /*
+     * 作用：删除槽位i，把同一簇中后面的元素前移填补空位，见FlatHashMap.removeAt
+     */
+    private void removeAt(int i) {
+        long[] ks = keys;
+        int[] vs = vals;
+        int mask = ks.length - 1;
+        for (int j = i; ; ) {
+            j = (j + 1) & mask;
+            long k = ks[j];
+            if (k == 0L)
+                break;
+            int home = slotFor(k);
+            if ((i <= j) ? (i < home && home <= j) : (i < home || home <= j))
+                continue;
+            ks[i] = k;
+            vs[i] = vs[j];
+            i = j;
+        }
+        ks[i] = 0L;
+        vs[i] = 0;
+    }
+
+    public void clear() {
+        if (size > 0) {
+            Arrays.fill(keys, 0L);
+            Arrays.fill(vals, 0);
+            hasZeroKey = false;
+            zeroValue = 0;
+            size = 0;
+        }
+    }
+
+    private void resize(int n) {
+        if (keys.length >= MAXIMUM_CAPACITY) {
+            if (size >= MAXIMUM_CAPACITY - 1)
+                throw new IllegalStateException("Map is full: " + size);
+            return;
+        }
+        long[] oldKeys = keys;
+        int[] oldVals = vals;
+        allocate(n);
+        long[] ks = keys;
+        int[] vs = vals;
+        int mask = ks.length - 1;
+        for (int j = 0; j < oldKeys.length; ++j) {
+            long k = oldKeys[j];
+            if (k != 0L) {
+                int i = slotFor(k);
+                while (ks[i] != 0L)
+                    i = (i + 1) & mask;
+                ks[i] = k;
+                vs[i] = oldVals[j];
+            }
+        }
+    }
+
+    /*
+     * 作用：第一趟，计算keys[off, off + n)的槽位下标，n不超过BATCH
+     *      然后依次读一遍每个槽位：这些读互不依赖，缓存未命中可以同时进行，第二趟探测时槽位已经在缓存中
+     */
+    private void computeSlots(long[] in, int off, int n) {
+        int[] s = slots;
+        int sh = shift;
+        for (int j = 0; j < n; ++j)
+            s[j] = (int) ((in[off + j] * GOLDEN) >>> sh);
+        long[] ks = keys;
+        long t = 0L;
+        for (int j = 0; j < n; ++j)
+            t += ks[s[j]];
+        touched = t;
+    }
+
+    /*
+     * 作用：按列批量查找，outValues[i]是keys[i]的value，outFound的第i位表示keys[i]是否存在
+     *      不存在的位置outValues写0
+     * 返回：找到的key个数
+     */
+    public int lookup(long[] keys, int[] outValues, BitSet outFound) {
+        int n = keys.length;
+        if (outValues.length < n)
+            throw new IllegalArgumentException("Illegal output length: " + outValues.length);
+        outFound.clear(0, n);
+        int found = 0;
+        long[] ks = this.keys;
+        int[] vs = vals, s = slots;
+        int mask = ks.length - 1;
+        for (int off = 0; off < n; off += BATCH) {
+            int len = Math.min(BATCH, n - off);
+            computeSlots(keys, off, len);
+            for (int j = 0; j < len; ++j) {
+                long key = keys[off + j], k;
+                int i = s[j];
+                while ((k = ks[i]) != key && k != 0L)
+                    i = (i + 1) & mask;
+                // key为0时上面停在任意一个空槽位上，单独处理
+                if (key == 0L) {
+                    if (!hasZeroKey) {
+                        outValues[off + j] = 0;
+                        continue;
+                    }
+                    outValues[off + j] = zeroValue;
+                } else if (k == 0L) {
+                    outValues[off + j] = 0;
+                    continue;
+                } else
+                    outValues[off + j] = vs[i];
+                outFound.set(off + j);
+                ++found;
+            }
+        }
+        return found;
+    }
+
+    /*
+     * 作用：按列批量插入keys[i] -> values[i]，相同key后出现的覆盖先出现的
+     *      开始前一次扩容到能容纳size + keys.length，批内不再扩容
+     */
+    public void insert(long[] keys, int[] values) {
+        int n = keys.length;
+        if (values.length < n)
+            throw new IllegalArgumentException("Illegal values length: " + values.length);
+        if ((long) size + n > threshold) {
+            int cap = capacityFor((int) Math.min((long) size + n, Integer.MAX_VALUE));
+            if (cap > this.keys.length)
+                resize(cap);
+        }
+        int[] s = slots;
+        for (int off = 0; off < n; off += BATCH) {
+            int len = Math.min(BATCH, n - off);
+            // 已经到最大容量时退回逐个put，由put检查是否已满
+            if (size + len > threshold) {
+                for (int j = 0; j < len; ++j)
+                    put(keys[off + j], values[off + j]);
+                continue;
+            }
+            computeSlots(keys, off, len);
+            for (int j = 0; j < len; ++j) {
+                long key = keys[off + j];
+                if (key == 0L)
+                    put(0L, values[off + j]);
+                else
+                    putAt(s[j], key, values[off + j]);
+            }
+        }
+    }
+}
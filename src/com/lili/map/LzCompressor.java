@@ -0,0 +1,212 @@
+package com.lili.map;
+
+import java.util.Arrays;
+
+/*
+ * 纯Java的LZ4风格块压缩，CompressedValueMap用它压缩value
+ *
+ * 格式与LZ4块格式相同的序列：
+ *      token(高4位字面量长度，低4位匹配长度-4) | 字面量长度扩展 | 字面量 | 2字节小端偏移 | 匹配长度扩展
+ *      长度为15时后面跟若干字节累加，遇到不是255的字节结束；最后一个序列只有字面量
+ *      原始长度由调用方另外保存，解压时输出写满就结束，所以不需要LZ4末尾5字节必须是字面量的限制
+ * 查找匹配：4字节的乘法散列表，只保存每个散列值最近的位置，不命中时步长随连续未命中的字节数增大
+ *
+ * 预置字典：压缩和解压时把字典看作输入之前的数据，匹配可以引用字典中的字节，
+ *      对很多彼此相似的小value(例如字段相同的JSON)效果明显；字典的散列表只在构造时计算一次
+ *      字典最多64KB(偏移只有2字节)，压缩和解压必须使用同一个字典
+ *
+ * 实例持有可重用的散列表，不是线程安全的
+ */
+public final class LzCompressor {
+
+    static final int MIN_MATCH = 4;
+    static final int MAX_OFFSET = 65535;
+    static final int HASH_LOG = 12;
+    static final int SKIP_TRIGGER = 6;
+    static final int RUN_MASK = 15;
+
+    private final byte[] dict;
+    private final int[] dictTable;      // 只包含字典位置的散列表，每次压缩复制到table
+    private final int[] table = new int[1 << HASH_LOG];
+
+    public LzCompressor() {
+        this(null);
+    }
+
+    public LzCompressor(byte[] dictionary) {
+        if (dictionary != null && dictionary.length > MAX_OFFSET)
+            dictionary = Arrays.copyOfRange(dictionary, dictionary.length - MAX_OFFSET, dictionary.length);
+        dict = (dictionary == null) ? new byte[0] : dictionary.clone();
+        dictTable = new int[1 << HASH_LOG];
+        Arrays.fill(dictTable, -1);
+        for (int i = 0; i + MIN_MATCH <= dict.length; ++i)
+            dictTable[hash(readInt(dict, i))] = i;
+    }
+
+    static int hash(int seq) {
+        return (seq * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    static int readInt(byte[] b, int i) {
+        return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff) << 16 | b[i + 3] << 24;
+    }
+
+    // 最坏情况下(完全不可压缩)的输出长度
+    public static int maxCompressedLength(int n) {
+        return n + n / 255 + 16;
+    }
+
+    /*
+     * 作用：压缩src[0, len)，写到dst的off位置，返回写入的字节数
+     *      dst从off开始至少要有maxCompressedLength(len)个字节
+     */
+    public int compress(byte[] src, int len, byte[] dst, int off) {
+        byte[] buf;
+        int base = dict.length;
+        // 有字典时拼在输入前面，位置统一按拼接后的下标计算
+        if (base == 0)
+            buf = src;
+        else {
+            buf = new byte[base + len];
+            System.arraycopy(dict, 0, buf, 0, base);
+            System.arraycopy(src, 0, buf, base, len);
+        }
+        int[] t = table;
+        System.arraycopy(dictTable, 0, t, 0, t.length);
+        int end = base + len, ip = base, anchor = base, op = off;
+        int searches = 1 << SKIP_TRIGGER;
+        while (ip + MIN_MATCH <= end) {
+            int seq = readInt(buf, ip), h = hash(seq);
+            int ref = t[h];
+            t[h] = ip;
+            if (ref < 0 || ip - ref > MAX_OFFSET || readInt(buf, ref) != seq) {
+                ip += searches++ >>> SKIP_TRIGGER;
+                continue;
+            }
+            searches = 1 << SKIP_TRIGGER;
+            // 向后延伸匹配，再向前吃掉字面量中相同的部分
+            int mlen = MIN_MATCH;
+            while (ip + mlen < end && buf[ref + mlen] == buf[ip + mlen])
+                ++mlen;
+            while (ip > anchor && ref > 0 && buf[ip - 1] == buf[ref - 1]) {
+                --ip;
+                --ref;
+                ++mlen;
+            }
+            op = writeSequence(buf, anchor, ip - anchor, ip - ref, mlen, dst, op);
+            ip += mlen;
+            anchor = ip;
+        }
+        op = writeSequence(buf, anchor, end - anchor, 0, 0, dst, op);
+        return op - off;
+    }
+
+    private static int writeSequence(byte[] buf, int lit, int litLen, int offset, int mlen,
+                                     byte[] dst, int op) {
+        int tokenPos = op++;
+        int token = Math.min(litLen, RUN_MASK) << 4;
+        if (litLen >= RUN_MASK)
+            op = writeLength(litLen - RUN_MASK, dst, op);
+        System.arraycopy(buf, lit, dst, op, litLen);
+        op += litLen;
+        if (mlen != 0) {
+            dst[op++] = (byte) offset;
+            dst[op++] = (byte) (offset >>> 8);
+            int m = mlen - MIN_MATCH;
+            token |= Math.min(m, RUN_MASK);
+            if (m >= RUN_MASK)
+                op = writeLength(m - RUN_MASK, dst, op);
+        }
+        dst[tokenPos] = (byte) token;
+        return op;
+    }
+
+    private static int writeLength(int n, byte[] dst, int op) {
+        for (; n >= 255; n -= 255)
+            dst[op++] = (byte) 255;
+        dst[op++] = (byte) n;
+        return op;
+    }
+
+    /*
+     * 作用：解压src[off, off + len)，输出rawLength个字节
+     *      数据损坏时抛出IllegalArgumentException
+     */
+    public byte[] decompress(byte[] src, int off, int len, int rawLength) {
+        byte[] out = new byte[rawLength];
+        byte[] d = dict;
+        int ip = off, end = off + len, op = 0;
+        try {
+            for (;;) {
+                int token = src[ip++] & 0xff;
+                int litLen = token >>> 4;
+                if (litLen == RUN_MASK) {
+                    int b;
+                    do {
+                        litLen += (b = src[ip++] & 0xff);
+                    } while (b == 255);
+                }
+                System.arraycopy(src, ip, out, op, litLen);
+                ip += litLen;
+                op += litLen;
+                if (op == rawLength)
+                    break;
+                int offset = (src[ip] & 0xff) | (src[ip + 1] & 0xff) << 8;
+                ip += 2;
+                int mlen = (token & RUN_MASK) + MIN_MATCH;
+                if ((token & RUN_MASK) == RUN_MASK) {
+                    int b;
+                    do {
+                        mlen += (b = src[ip++] & 0xff);
+                    } while (b == 255);
+                }
+                int from = op - offset;
+                if (offset == 0 || from < -d.length || op + mlen > rawLength)
+                    throw new IllegalArgumentException("Illegal match at " + (ip - off));
+                // 引用字典的部分
+                if (from < 0) {
+                    int n = Math.min(-from, mlen);
+                    System.arraycopy(d, d.length + from, out, op, n);
+                    op += n;
+                    from += n;
+                    if ((mlen -= n) == 0)
+                        continue;
+                }
+                if (offset >= mlen) {
+                    System.arraycopy(out, from, out, op, mlen);
+                    op += mlen;
+                } else {
+                    // 重叠复制必须逐字节向前
+                    for (int i = 0; i < mlen; ++i)
+                        out[op++] = out[from + i];
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Illegal compressed data", e);
+        }
+        if (ip != end)
+            throw new IllegalArgumentException("Illegal compressed length: " + len);
+        return out;
+    }
+
+    /*
+     * 作用：用样本生成原始内容字典，从最后一个样本开始向前拼接，直到size字节
+     *      最近的样本放在字典末尾，匹配偏移最短；样本应当是有代表性的value编码后的字节
+     */
+    public static byte[] rawDictionary(Iterable<byte[]> samples, int size) {
+        if (size <= 0 || size > MAX_OFFSET)
+            throw new IllegalArgumentException("Illegal dictionary size: " + size);
+        java.util.ArrayList<byte[]> list = new java.util.ArrayList<>();
+        for (byte[] s : samples)
+            list.add(s);
+        byte[] d = new byte[size];
+        int pos = size;
+        for (int i = list.size() - 1; i >= 0 && pos > 0; --i) {
+            byte[] s = list.get(i);
+            int n = Math.min(s.length, pos);
+            System.arraycopy(s, s.length - n, d, pos - n, n);
+            pos -= n;
+        }
+        return Arrays.copyOfRange(d, pos, size);
+    }
+}
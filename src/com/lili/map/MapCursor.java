@@ -0,0 +1,29 @@
+package com.lili.map;
+
+/*
+ * 可重复使用的游标，遍历时不为每个条目或每次遍历分配对象
+ *
+ * 用法：
+ *      MapCursor<K,V> c = map.cursor();     // 只分配一次，可以保存在字段中
+ *      for (c.reset(); c.advance(); )
+ *          use(c.key(), c.value());
+ *
+ * advance移动到下一个条目，没有更多条目时返回false
+ * key/value/setValue/remove作用于当前条目，advance返回true之前或remove之后调用抛出IllegalStateException
+ * 遍历期间除了通过游标的remove/setValue之外修改了Map，advance抛出ConcurrentModificationException
+ */
+public interface MapCursor<K,V> {
+
+    boolean advance();
+
+    K key();
+
+    V value();
+
+    V setValue(V value);
+
+    void remove();
+
+    // 回到第一个条目之前，重新开始遍历
+    void reset();
+}
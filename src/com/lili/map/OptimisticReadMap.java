@@ -0,0 +1,200 @@
+package com.lili.map;
+
+import java.util.Objects;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/*
+ * 单写者、多读者的Map，读操作不写任何共享变量
+ *
+ * 写：put/remove/update在StampedLock的写锁内修改底层HashMap，写锁会使之前发出的乐观读版本号失效
+ * 读：get/containsKey先用tryOptimisticRead拿到版本号，不加锁直接遍历table，最后validate
+ *      版本号没变说明期间没有putVal/removeNode/resize，结果可用；变了就重试
+ *      连续OPTIMISTIC_RETRIES次失败(写非常频繁)后退化为读锁
+ *      ReadWriteLock的读锁每次都要CAS读者计数，读者越多缓存行争用越严重，乐观读只读版本号，读吞吐随读者数线性增长
+ *
+ * 乐观遍历时可能看到写了一半的结构：
+ *      只沿着next遍历(树形桶的TreeNode同样由next串起来)，不走红黑树的left/right，
+ *      每走VALIDATE_INTERVAL步检查一次版本号，写线程改动中的链表不会让读线程一直转下去
+ *      遍历中抛出的异常(例如key.equals看到未初始化完的对象)按版本号失效处理
+ *      Node的hash和key是final的，读到Node时一定能看到它们初始化后的值
+ */
+public class OptimisticReadMap<K,V> {
+
+    static final int OPTIMISTIC_RETRIES = 3;
+    static final int VALIDATE_INTERVAL = 64;
+
+    private final HashMap<K,V> map;
+    private final StampedLock lock = new StampedLock();
+
+    public OptimisticReadMap() {
+        map = new HashMap<>();
+    }
+    public OptimisticReadMap(int initialCapacity) {
+        map = new HashMap<>(initialCapacity);
+    }
+
+    public V get(Object key) {
+        for (int i = 0; i < OPTIMISTIC_RETRIES; ++i) {
+            long stamp = lock.tryOptimisticRead();
+            if (stamp == 0L)
+                continue;
+            try {
+                HashMap.Node<K,V> e = findNode(stamp, key);
+                V v = (e == null) ? null : e.value;
+                if (lock.validate(stamp))
+                    return v;
+            } catch (RuntimeException ignored) {
+                // 与写操作重叠，重试
+            }
+        }
+        long stamp = lock.readLock();
+        try {
+            return map.get(key);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public V getOrDefault(Object key, V defaultValue) {
+        for (int i = 0; i < OPTIMISTIC_RETRIES; ++i) {
+            long stamp = lock.tryOptimisticRead();
+            if (stamp == 0L)
+                continue;
+            try {
+                HashMap.Node<K,V> e = findNode(stamp, key);
+                V v = (e == null) ? defaultValue : e.value;
+                if (lock.validate(stamp))
+                    return v;
+            } catch (RuntimeException ignored) {
+                // 与写操作重叠，重试
+            }
+        }
+        long stamp = lock.readLock();
+        try {
+            return map.getOrDefault(key, defaultValue);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public boolean containsKey(Object key) {
+        for (int i = 0; i < OPTIMISTIC_RETRIES; ++i) {
+            long stamp = lock.tryOptimisticRead();
+            if (stamp == 0L)
+                continue;
+            try {
+                boolean found = findNode(stamp, key) != null;
+                if (lock.validate(stamp))
+                    return found;
+            } catch (RuntimeException ignored) {
+                // 与写操作重叠，重试
+            }
+        }
+        long stamp = lock.readLock();
+        try {
+            return map.containsKey(key);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /*
+     * 作用：不加锁查找key对应的Node，结果只有在之后validate(stamp)成功时才可信
+     *      中途发现版本号失效时返回null，调用方的validate同样会失败
+     */
+    private HashMap.Node<K,V> findNode(long stamp, Object key) {
+        HashMap.Node<K,V>[] tab;
+        int n, hash;
+        if ((tab = map.table) == null || (n = tab.length) == 0)
+            return null;
+        hash = map.hash(key);
+        int steps = 0;
+        for (HashMap.Node<K,V> e = tab[(n - 1) & hash]; e != null; e = e.next) {
+            K k;
+            if (e.hash == hash && ((k = e.key) == key || (key != null && key.equals(k))))
+                return e;
+            if (++steps % VALIDATE_INTERVAL == 0 && !lock.validate(stamp))
+                return null;
+        }
+        return null;
+    }
+
+    public int size() {
+        long stamp = lock.tryOptimisticRead();
+        int n = map.size();
+        if (lock.validate(stamp))
+            return n;
+        stamp = lock.readLock();
+        try {
+            return map.size();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public V put(K key, V value) {
+        long stamp = lock.writeLock();
+        try {
+            return map.put(key, value);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public V putIfAbsent(K key, V value) {
+        long stamp = lock.writeLock();
+        try {
+            return map.putIfAbsent(key, value);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public V remove(Object key) {
+        long stamp = lock.writeLock();
+        try {
+            return map.remove(key);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public void clear() {
+        long stamp = lock.writeLock();
+        try {
+            map.clear();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /*
+     * 作用：在一次写锁内对底层HashMap做多个修改，读者只会看到全部修改之前或之后的状态
+     */
+    public <R> R update(Function<? super HashMap<K,V>, ? extends R> op) {
+        Objects.requireNonNull(op);
+        long stamp = lock.writeLock();
+        try {
+            return op.apply(map);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // 遍历时持有读锁，期间写者被阻塞
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        Objects.requireNonNull(action);
+        long stamp = lock.readLock();
+        try {
+            map.forEach(action);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.lili.map;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/*
+ * 按key分片的Map，每个分片是一个独立的HashMap，由一个专属的工作线程拥有
+ *
+ * 路由：分片下标取扰动后hash的高位(乘法扰动后右移shardShift)，低位不参与分片，
+ *      留给分片内HashMap的(n - 1) & hash使用，分片内的桶分布不受分片影响
+ * 单写者：分片的HashMap只在它的工作线程上读写，因此不需要任何锁
+ *      其他线程通过消息传递访问：submit/execute把操作投递到分片的任务队列，由工作线程按顺序执行
+ *      调用线程本身就是分片的工作线程时直接执行，不经过队列
+ * 聚合：size/forEach/snapshot把任务同时投递到所有分片，各分片在自己的线程上并行执行
+ *      结果只保证在单个分片内是一致的，不是整个Map某一时刻的快照
+ * 阻塞：工作线程上不能阻塞等待其他分片，两个分片互相等待时两个工作线程都会卡死
+ *      size/forEach/snapshot/clear在工作线程上调用时直接抛出IllegalStateException
+ *      op中需要其他分片的结果时，用返回的CompletableFuture的thenAccept等异步组合，不要join/get
+ */
+public class ShardedHashMap<K,V> implements AutoCloseable {
+
+    private final Shard<K,V>[] shards;
+    private final int shardShift;
+
+    public ShardedHashMap() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+    @SuppressWarnings({"rawtypes","unchecked"})
+    public ShardedHashMap(int shardCount) {
+        if (shardCount <= 0)
+            throw new IllegalArgumentException("Illegal shard count: " + shardCount);
+        int n = HashMap.tableSizeFor(shardCount);
+        shards = (Shard<K,V>[]) new Shard[n];
+        for (int i = 0; i < n; ++i)
+            shards[i] = new Shard<>(i);
+        shardShift = 32 - Integer.numberOfTrailingZeros(n);
+    }
+
+    public int shardCount() {
+        return shards.length;
+    }
+
+    // key所属分片的下标
+    public int shardOf(Object key) {
+        int h;
+        h = (key == null) ? 0 : (h = key.hashCode()) ^ (h >>> 16);
+        return shards.length == 1 ? 0 : (h * 0x9E3779B9) >>> shardShift;
+    }
+
+    // 当前线程是否是key所属分片的工作线程，是的话可以直接用localMap访问
+    public boolean isOwner(Object key) {
+        return shards[shardOf(key)].owner == Thread.currentThread();
+    }
+
+    /*
+     * 作用：返回当前工作线程拥有的分片的HashMap，只能在分片的工作线程上调用
+     */
+    public HashMap<K,V> localMap() {
+        Thread t = Thread.currentThread();
+        for (Shard<K,V> s : shards) {
+            if (s.owner == t)
+                return s.map;
+        }
+        throw new IllegalStateException("Not a shard worker: " + t.getName());
+    }
+
+    /*
+     * 作用：在key所属分片的工作线程上执行op，返回op的结果
+     *      op中可以对分片的HashMap做任意读写，但不能把HashMap泄露给其他线程
+     *      在工作线程上不要join/get返回的future，除非key属于当前分片
+     */
+    public <R> CompletableFuture<R> submit(K key, Function<? super HashMap<K,V>, ? extends R> op) {
+        return shards[shardOf(key)].submit(op);
+    }
+
+    /*
+     * 作用：同submit，但op没有结果，op抛出的异常使返回的future异常完成，不会结束工作线程
+     */
+    public CompletableFuture<Void> execute(K key, Consumer<? super HashMap<K,V>> op) {
+        Objects.requireNonNull(op);
+        return shards[shardOf(key)].submit(m -> {
+            op.accept(m);
+            return null;
+        });
+    }
+
+    public CompletableFuture<V> get(K key) {
+        return submit(key, m -> m.get(key));
+    }
+    public CompletableFuture<V> put(K key, V value) {
+        return submit(key, m -> m.put(key, value));
+    }
+    public CompletableFuture<V> remove(K key) {
+        return submit(key, m -> m.remove(key));
+    }
+
+    /*
+     * 作用：在每个分片上并行执行op，结果按分片下标排列
+     */
+    public <R> CompletableFuture<List<R>> submitAll(Function<? super HashMap<K,V>, ? extends R> op) {
+        Objects.requireNonNull(op);
+        @SuppressWarnings("unchecked")
+        CompletableFuture<R>[] fs = (CompletableFuture<R>[]) new CompletableFuture<?>[shards.length];
+        for (int i = 0; i < shards.length; ++i)
+            fs[i] = shards[i].submit(op);
+        return CompletableFuture.allOf(fs).thenApply(ignored -> {
+            List<R> result = new ArrayList<>(fs.length);
+            for (CompletableFuture<R> f : fs)
+                result.add(f.join());
+            return result;
+        });
+    }
+
+    // 当前线程是某个分片的工作线程时抛出IllegalStateException，见类注释中的阻塞
+    private void checkNotWorker() {
+        Thread t = Thread.currentThread();
+        for (Shard<K,V> s : shards) {
+            if (s.owner == t)
+                throw new IllegalStateException("Blocking call on shard worker: " + t.getName());
+        }
+    }
+
+    public int size() {
+        checkNotWorker();
+        int n = 0;
+        for (int s : submitAll(HashMap::size).join())
+            n += s;
+        return n;
+    }
+
+    /*
+     * 作用：各分片在自己的工作线程上并行遍历，action需要是线程安全的
+     */
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        Objects.requireNonNull(action);
+        checkNotWorker();
+        submitAll(m -> {
+            m.forEach(action);
+            return null;
+        }).join();
+    }
+
+    /*
+     * 作用：各分片并行复制自己的映射，再合并成一个新的HashMap
+     *      合并前已知总数，结果HashMap一次分配到位
+     */
+    public HashMap<K,V> snapshot() {
+        checkNotWorker();
+        List<HashMap<K,V>> parts = submitAll(m -> new HashMap<K,V>(m)).join();
+        int n = 0;
+        for (HashMap<K,V> p : parts)
+            n += p.size();
+        HashMap<K,V> result = new HashMap<>((int) Math.min((float) n / HashMap.DEFAULT_LOAD_FACTOR + 1.0F,
+                HashMap.MAXIMUM_CAPACITY));
+        for (HashMap<K,V> p : parts)
+            result.putAll(p);
+        return result;
+    }
+
+    public void clear() {
+        checkNotWorker();
+        submitAll(m -> {
+            m.clear();
+            return null;
+        }).join();
+    }
+
+    // 执行完已经投递的任务后停止所有工作线程
+    public void close() {
+        for (Shard<K,V> s : shards)
+            s.worker.shutdown();
+        boolean interrupted = false;
+        for (Shard<K,V> s : shards) {
+            try {
+                s.worker.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /*
+     * 一个分片：HashMap和唯一访问它的工作线程
+     */
+    static final class Shard<K,V> {
+        final HashMap<K,V> map = new HashMap<>();
+        final ExecutorService worker;
+        volatile Thread owner;
+
+        Shard(int index) {
+            worker = Executors.newSingleThreadExecutor(task -> {
+                Thread t = new Thread(task, "ShardedHashMap-shard-" + index);
+                t.setDaemon(true);
+                owner = t;
+                return t;
+            });
+        }
+
+        <R> CompletableFuture<R> submit(Function<? super HashMap<K,V>, ? extends R> op) {
+            Objects.requireNonNull(op);
+            if (owner == Thread.currentThread()) {
+                CompletableFuture<R> f = new CompletableFuture<>();
+                try {
+                    f.complete(op.apply(map));
+                } catch (Throwable ex) {
+                    f.completeExceptionally(ex);
+                }
+                return f;
+            }
+            return CompletableFuture.supplyAsync(() -> op.apply(map), worker);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.lili.map;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.*;
+
+/*
+ * 软引用value的Map，内存不足时value可以被GC回收，回收后对应的映射会被自动删除，适合做内存敏感的缓存
+ *
+ * 底层直接复用HashMap的散列表：value被包装成SoftValue存入HashMap，key保持强引用
+ * SoftValue记录自己的key，被回收后进入ReferenceQueue，读写时取出并通过remove(key, softValue)删除，
+ * removeNode按引用匹配value，不会误删同一个key后来写入的新value
+ *
+ * value不能为null，null用来表示value已被回收
+ * 与HashMap一样不是线程安全的
+ */
+public class SoftValueHashMap<K,V> extends AbstractMap<K,V> {
+
+    private final HashMap<K,SoftValue<K,V>> table;
+    private final ReferenceQueue<V> queue = new ReferenceQueue<>();
+    private transient Set<Entry<K,V>> entrySet;
+
+    public SoftValueHashMap(int initialCapacity, float loadFactor) {
+        table = new HashMap<>(initialCapacity, loadFactor);
+    }
+    public SoftValueHashMap(int initialCapacity) {
+        table = new HashMap<>(initialCapacity);
+    }
+    public SoftValueHashMap() {
+        table = new HashMap<>();
+    }
+
+    /*
+     * 作用：从ReferenceQueue中取出value已被回收的条目并从散列表中删除
+     *      max: 本次最多清理的个数，读操作传WeakHashMap.EXPUNGE_BATCH，写操作清空整个队列
+     *      与WeakHashMap相同，用HashMap.expungeNode删除，不改变modCount
+     */
+    @SuppressWarnings("unchecked")
+    private void expungeStaleEntries(int max) {
+        Object x;
+        while (max-- > 0 && (x = queue.poll()) != null) {
+            SoftValue<K,V> sv = (SoftValue<K,V>) x;
+            table.expungeNode(sv.key, sv, true);
+        }
+    }
+
+    public int size() {
+        expungeStaleEntries(Integer.MAX_VALUE);
+        return table.size();
+    }
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+    public V get(Object key) {
+        expungeStaleEntries(WeakHashMap.EXPUNGE_BATCH);
+        SoftValue<K,V> sv;
+        return (sv = table.get(key)) == null ? null : sv.get();
+    }
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+    public V put(K key, V value) {
+        Objects.requireNonNull(value);
+        expungeStaleEntries(Integer.MAX_VALUE);
+        SoftValue<K,V> old = table.put(key, new SoftValue<>(key, value, queue));
+        return (old == null) ? null : old.get();
+    }
+    public V remove(Object key) {
+        expungeStaleEntries(Integer.MAX_VALUE);
+        SoftValue<K,V> old = table.remove(key);
+        return (old == null) ? null : old.get();
+    }
+    public void clear() {
+        while (queue.poll() != null)
+            ;
+        table.clear();
+    }
+
+    public Set<Entry<K,V>> entrySet() {
+        Set<Entry<K,V>> es;
+        return (es = entrySet) == null ? (entrySet = new EntrySet()) : es;
+    }
+
+    final class EntrySet extends AbstractSet<Entry<K,V>> {
+        public final int size()                 { return SoftValueHashMap.this.size(); }
+        public final void clear()               { SoftValueHashMap.this.clear(); }
+        public final Iterator<Entry<K,V>> iterator() {
+            return new EntryIterator();
+        }
+        public final boolean contains(Object o) {
+            if (!(o instanceof Entry))
+                return false;
+            Entry<?,?> e = (Entry<?,?>) o;
+            V v = get(e.getKey());
+            return v != null && v.equals(e.getValue());
+        }
+        public final boolean remove(Object o) {
+            if (contains(o)) {
+                SoftValueHashMap.this.remove(((Entry<?,?>) o).getKey());
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /*
+     * 迭代时跳过value已被回收的条目，返回的SoftEntry强引用value，保证迭代期间value不会被回收
+     * remove的限制与WeakHashMap.EntryIterator相同
+     */
+    final class EntryIterator implements Iterator<Entry<K,V>> {
+        final Iterator<Entry<K,SoftValue<K,V>>> it;
+        SoftEntry next;
+        boolean canRemove;
+
+        EntryIterator() {
+            expungeStaleEntries(Integer.MAX_VALUE);
+            it = table.entrySet().iterator();
+        }
+
+        public boolean hasNext() {
+            if (next != null)
+                return true;
+            while (it.hasNext()) {
+                Entry<K,SoftValue<K,V>> e = it.next();
+                canRemove = false;
+                V v = e.getValue().get();
+                if (v != null) {
+                    next = new SoftEntry(e, v);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public Entry<K,V> next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            SoftEntry e = next;
+            next = null;
+            canRemove = true;
+            return e;
+        }
+
+        public void remove() {
+            if (!canRemove)
+                throw new IllegalStateException();
+            canRemove = false;
+            it.remove();
+        }
+    }
+
+    final class SoftEntry implements Entry<K,V> {
+        final Entry<K,SoftValue<K,V>> node;
+        V value;                    // 强引用 迭代期间保持value存活
+
+        SoftEntry(Entry<K,SoftValue<K,V>> node, V value) {
+            this.node = node;
+            this.value = value;
+        }
+
+        public K getKey()             { return node.getKey(); }
+        public V getValue()           { return value; }
+        public String toString()      { return getKey() + "=" + value; }
+
+        // 直接替换底层Node中的SoftValue，不经过put，迭代过程中也可以安全调用
+        public V setValue(V newValue) {
+            Objects.requireNonNull(newValue);
+            V oldValue = value;
+            node.setValue(new SoftValue<>(node.getKey(), newValue, queue));
+            value = newValue;
+            return oldValue;
+        }
+
+        public int hashCode() {
+            return Objects.hashCode(getKey()) ^ value.hashCode();
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry))
+                return false;
+            Entry<?,?> e = (Entry<?,?>) o;
+            return Objects.equals(getKey(), e.getKey()) && value.equals(e.getValue());
+        }
+    }
+
+    static final class SoftValue<K,V> extends SoftReference<V> {
+        final K key;
+
+        SoftValue(K key, V value, ReferenceQueue<? super V> q) {
+            super(value, q);
+            this.key = key;
+        }
+    }
+}
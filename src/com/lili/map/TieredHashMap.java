@@ -0,0 +1,767 @@
+package com.lili.map;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/*
+ * 两级Map：热数据在堆内的HashMap中，冷数据溢出到磁盘上的ColdSegment，适合工作集远小于总数据量、堆很小的场景
+ *
+ * 热层：HashMap<K,Hot>加一个CLOCK环(Hot数组)，最多hotCapacity个映射
+ *      get/put命中时设置referenced位，热层满时指针扫描环，清掉途经的referenced位，淘汰第一个没有被引用的条目
+ *      环上的删除把最后一个条目换到空位，不留空洞
+ * 冷层：数据文件只追加记录，索引文件是开放寻址的槽位数组，都通过FileChannel按位置读写，由操作系统页缓存负责缓存
+ *      冷层中找到的映射在get/put时移出冷层、放回热层(提升)，可能因此再淘汰一个热条目
+ * 同一个key任何时候只在一层中存在，size是两层之和
+ *
+ * key/value通过DurableHashMap.Codec编码，冷层中的key比较先比较hash，hash相同才解码key调用equals
+ * 冷层文件在构造时于dir下创建，close时删除，不用于持久化，进程退出后内容不保留
+ * 读写冷层的IOException包装成UncheckedIOException抛出
+ * 与HashMap一样不是线程安全的
+ */
+public class TieredHashMap<K,V> extends AbstractMap<K,V> implements Closeable {
+
+    private final int hotCapacity;
+    private final HashMap<K,Hot<K,V>> hot;
+    private final Hot<K,V>[] clock;
+    private int clockSize;
+    private int hand;
+    private final ColdSegment<K,V> cold;
+    private transient Set<Entry<K,V>> entrySet;
+
+    // 命中统计
+    private long hotHits;
+    private long coldHits;
+    private long misses;
+    private long evictions;
+
+    /*
+     * 参数：hotCapacity  热层最多容纳的映射个数
+     *      dir          冷层文件所在目录
+     */
+    @SuppressWarnings("unchecked")
+    public TieredHashMap(int hotCapacity, Path dir, DurableHashMap.Codec<K> keyCodec,
+                         DurableHashMap.Codec<V> valueCodec) throws IOException {
+        if (hotCapacity <= 0)
+            throw new IllegalArgumentException("Illegal hot capacity: " + hotCapacity);
+        this.hotCapacity = hotCapacity;
+        this.hot = new HashMap<>((int) Math.min(hotCapacity / 0.75f + 1, 1 << 30));
+        this.clock = (Hot<K,V>[]) new Hot<?,?>[hotCapacity];
+        this.cold = new ColdSegment<>(dir, Objects.requireNonNull(keyCodec),
+                Objects.requireNonNull(valueCodec));
+    }
+
+    public int size() {
+        return hot.size() + cold.live;
+    }
+
+    public boolean containsKey(Object key) {
+        return hot.containsKey(key) || cold.find(key, FlatHashMap.hash(key)) >= 0;
+    }
+
+    public V get(Object key) {
+        Hot<K,V> e;
+        if ((e = hot.get(key)) != null) {
+            e.referenced = true;
+            ++hotHits;
+            return e.value;
+        }
+        int slot = cold.find(key, FlatHashMap.hash(key));
+        if (slot < 0) {
+            ++misses;
+            return null;
+        }
+        ++coldHits;
+        V v = cold.valueAt(slot);
+        cold.removeAt(slot);
+        @SuppressWarnings("unchecked") K k = (K) key;
+        addHot(k, v);
+        return v;
+    }
+
+    public V put(K key, V value) {
+        Hot<K,V> e;
+        if ((e = hot.get(key)) != null) {
+            V oldValue = e.value;
+            e.value = value;
+            e.referenced = true;
+            return oldValue;
+        }
+        V oldValue = null;
+        int slot = cold.find(key, FlatHashMap.hash(key));
+        if (slot >= 0) {
+            oldValue = cold.valueAt(slot);
+            cold.removeAt(slot);
+        }
+        addHot(key, value);
+        return oldValue;
+    }
+
+    public V remove(Object key) {
+        Hot<K,V> e;
+        if ((e = hot.remove(key)) != null) {
+            unlink(e);
+            return e.value;
+        }
+        int slot = cold.find(key, FlatHashMap.hash(key));
+        if (slot < 0)
+            return null;
+        V oldValue = cold.valueAt(slot);
+        cold.removeAt(slot);
+        return oldValue;
+    }
+
+    public void clear() {
+        hot.clear();
+        Arrays.fill(clock, 0, clockSize, null);
+        clockSize = hand = 0;
+        cold.clear();
+    }
+
+    // 关闭并删除冷层文件，之后不能再使用
+    public void close() throws IOException {
+        cold.close();
+    }
+
+    // 放入热层，热层已满时先淘汰一个条目到冷层
+    private void addHot(K key, V value) {
+        if (clockSize >= hotCapacity)
+            evict();
+        Hot<K,V> e = new Hot<>(key, value);
+        e.slot = clockSize;
+        clock[clockSize++] = e;
+        hot.put(key, e);
+    }
+
+    private void evict() {
+        for (Hot<K,V> e;;) {
+            if (hand >= clockSize)
+                hand = 0;
+            if ((e = clock[hand]).referenced) {
+                e.referenced = false;
+                ++hand;
+            } else {
+                // 换到hand位置的是还没有被扫描过的条目，hand不前进
+                hot.remove(e.key);
+                unlink(e);
+                cold.insert(e.key, FlatHashMap.hash(e.key), e.value);
+                ++evictions;
+                return;
+            }
+        }
+    }
+
+    private void unlink(Hot<K,V> e) {
+        int i = e.slot;
+        Hot<K,V> last = clock[--clockSize];
+        clock[i] = last;
+        last.slot = i;
+        clock[clockSize] = null;
+    }
+
+    public int hotSize() {
+        return hot.size();
+    }
+    public int coldSize() {
+        return cold.live;
+    }
+
+    public TierStats stats() {
+        return new TierStats(hotHits, coldHits, misses, evictions, hot.size(), cold.live,
+                cold.dataEnd, (long) cold.capacity * Long.BYTES);
+    }
+    public void resetStats() {
+        hotHits = coldHits = misses = evictions = 0L;
+    }
+
+    /*
+     * 分层统计快照，只统计get
+     *      hotHits/coldHits: 在热层/冷层命中的次数，冷层命中同时就是一次提升
+     *      misses: 两层都不存在的次数
+     *      evictions: 从热层淘汰到冷层的次数
+     *      coldDataBytes/coldIndexBytes: 冷层数据文件(包括尚未压缩回收的记录)和索引文件的大小
+     */
+    public static final class TierStats {
+        public final long hotHits;
+        public final long coldHits;
+        public final long misses;
+        public final long evictions;
+        public final int hotSize;
+        public final int coldSize;
+        public final long coldDataBytes;
+        public final long coldIndexBytes;
+
+        TierStats(long hotHits, long coldHits, long misses, long evictions, int hotSize,
+                  int coldSize, long coldDataBytes, long coldIndexBytes) {
+            this.hotHits = hotHits;
+            this.coldHits = coldHits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.hotSize = hotSize;
+            this.coldSize = coldSize;
+            this.coldDataBytes = coldDataBytes;
+            this.coldIndexBytes = coldIndexBytes;
+        }
+
+        public double hotHitRate() {
+            long n = hotHits + coldHits + misses;
+            return (n == 0L) ? 0.0 : (double) hotHits / n;
+        }
+
+        public String toString() {
+            return "TierStats[hotHits=" + hotHits + ", coldHits=" + coldHits + ", misses=" + misses +
+                    ", evictions=" + evictions + ", hot=" + hotSize + ", cold=" + coldSize +
+                    ", coldBytes=" + (coldDataBytes + coldIndexBytes) + "]";
+        }
+    }
+
+    public Set<Entry<K,V>> entrySet() {
+        Set<Entry<K,V>> es;
+        return (es = entrySet) == null ? (entrySet = new EntrySet()) : es;
+    }
+
+    final class EntrySet extends AbstractSet<Entry<K,V>> {
+        public final int size()                 { return TieredHashMap.this.size(); }
+        public final void clear()               { TieredHashMap.this.clear(); }
+        public final Iterator<Entry<K,V>> iterator() {
+            return new EntryIterator();
+        }
+        public final boolean contains(Object o) {
+            if (!(o instanceof Entry))
+                return false;
+            Entry<?,?> e = (Entry<?,?>) o;
+            Object key = e.getKey();
+            Hot<K,V> h;
+            if ((h = hot.get(key)) != null)
+                return Objects.equals(h.value, e.getValue());
+            int slot = cold.find(key, FlatHashMap.hash(key));
+            return slot >= 0 && Objects.equals(cold.valueAt(slot), e.getValue());
+        }
+        public final boolean remove(Object o) {
+            if (contains(o)) {
+                TieredHashMap.this.remove(((Entry<?,?>) o).getKey());
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /*
+     * 先遍历热层，再按槽位顺序遍历冷层，遍历不会提升冷条目，也不更新命中统计
+     * 冷层的条目是读出时解码的副本，setValue写回冷层
+     * 除了通过迭代器remove/Entry.setValue之外修改Map，抛出ConcurrentModificationException
+     */
+    final class EntryIterator implements Iterator<Entry<K,V>> {
+        final Iterator<Hot<K,V>> hotIt = hot.values().iterator();
+        final long[] chunk = new long[ColdSegment.SCAN_CHUNK];
+        int chunkBase = -ColdSegment.SCAN_CHUNK;
+        int chunkLength;
+        int nextSlot;               // 冷层中下一个要检查的槽位
+        int expectedModCount;
+        Hot<K,V> lastHot;
+        ColdEntry lastCold;
+        boolean inCold;
+
+        public boolean hasNext() {
+            if (!inCold) {
+                if (hotIt.hasNext())
+                    return true;
+                inCold = true;
+                expectedModCount = cold.modCount;
+            }
+            if (cold.modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            for (int cap = cold.capacity; nextSlot < cap; ++nextSlot) {
+                if (nextSlot >= chunkBase + chunkLength) {
+                    chunkBase = nextSlot;
+                    chunkLength = cold.readSlots(chunkBase, chunk);
+                }
+                long s = chunk[nextSlot - chunkBase];
+                if (s != ColdSegment.EMPTY && s != ColdSegment.TOMBSTONE)
+                    return true;
+            }
+            return false;
+        }
+
+        public Entry<K,V> next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            if (!inCold) {
+                lastCold = null;
+                return lastHot = hotIt.next();
+            }
+            // 压缩会改写槽位中的偏移，这里重新读取槽位
+            int slot = nextSlot++;
+            lastHot = null;
+            return lastCold = new ColdEntry(slot, cold.keyAt(slot), cold.valueAt(slot));
+        }
+
+        public void remove() {
+            if (lastHot != null) {
+                hotIt.remove();
+                unlink(lastHot);
+                lastHot = null;
+            } else if (lastCold != null) {
+                if (cold.modCount != expectedModCount)
+                    throw new ConcurrentModificationException();
+                cold.removeAt(lastCold.slot);
+                expectedModCount = cold.modCount;
+                lastCold = null;
+            } else
+                throw new IllegalStateException();
+        }
+    }
+
+    final class ColdEntry implements Entry<K,V> {
+        final int slot;
+        final K key;
+        V value;
+        final int expectedModCount; // 读出时冷层的modCount，之后槽位有增删则slot不再可信
+
+        ColdEntry(int slot, K key, V value) {
+            this.slot = slot;
+            this.key = key;
+            this.value = value;
+            this.expectedModCount = cold.modCount;
+        }
+
+        public K getKey()             { return key; }
+        public V getValue()           { return value; }
+        public String toString()      { return key + "=" + value; }
+
+        /*
+         * 原地替换槽位指向的记录，槽位不变，迭代过程中也可以安全调用
+         * 读出之后冷层有过槽位增删(迭代器remove、get提升、put等)时slot可能已经是墓碑或者别的key，
+         *      抛出ConcurrentModificationException，不写回
+         */
+        public V setValue(V newValue) {
+            if (cold.modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            V oldValue = value;
+            cold.replace(slot, key, FlatHashMap.hash(key), newValue);
+            value = newValue;
+            return oldValue;
+        }
+
+        public int hashCode() {
+            return Objects.hashCode(key) ^ Objects.hashCode(value);
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry))
+                return false;
+            Entry<?,?> e = (Entry<?,?>) o;
+            return Objects.equals(key, e.getKey()) && Objects.equals(value, e.getValue());
+        }
+    }
+
+    static final class Hot<K,V> implements Entry<K,V> {
+        final K key;
+        V value;
+        boolean referenced = true;  // 放入热层本身算一次访问
+        int slot;                   // 在clock中的下标
+
+        Hot(K key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        public K getKey()             { return key; }
+        public V getValue()           { return value; }
+        public String toString()      { return key + "=" + value; }
+
+        public V setValue(V newValue) {
+            V oldValue = value;
+            value = newValue;
+            return oldValue;
+        }
+
+        public int hashCode() {
+            return Objects.hashCode(key) ^ Objects.hashCode(value);
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry))
+                return false;
+            Entry<?,?> e = (Entry<?,?>) o;
+            return Objects.equals(key, e.getKey()) && Objects.equals(value, e.getValue());
+        }
+    }
+
+    /*
+     * 磁盘上的冷层
+     *
+     * 数据文件：记录只追加，int hash | int key长度 | int value长度 | key | value，长度为-1表示null
+     *      删除和覆盖只让旧记录失效，失效字节超过文件一半时压缩：按槽位顺序把有效记录复制到新文件，原地改写槽位中的偏移
+     * 索引文件：capacity个long槽位，线性探测，0表示空，-1表示已删除(墓碑)
+     *      槽位 = hash低24位 << 40 | (记录偏移 + 1)，探测时先比较这24位，再读记录头比较完整hash
+     *      读到文件末尾之外的槽位当作空，新索引文件不需要预先填0
+     *      已用槽位(包括墓碑)超过一半时重建，有效映射超过1/4时容量翻倍，否则只清掉墓碑
+     */
+    static final class ColdSegment<K,V> implements Closeable {
+        static final long EMPTY = 0L;
+        static final long TOMBSTONE = -1L;
+        static final int TAG_SHIFT = 40;
+        static final long OFFSET_MASK = (1L << TAG_SHIFT) - 1;
+        static final int TAG_MASK = (1 << (Long.SIZE - TAG_SHIFT)) - 1;
+        static final int HEADER = 12;
+        static final int MIN_CAPACITY = 1 << 12;
+        static final int MAX_CAPACITY = 1 << 30;
+        static final int SCAN_CHUNK = 1 << 13;
+        static final long MIN_COMPACT_BYTES = 1L << 20;
+
+        final Path dir;
+        final DurableHashMap.Codec<K> keyCodec;
+        final DurableHashMap.Codec<V> valueCodec;
+        FileChannel data;
+        FileChannel index;
+        long dataEnd;               // 下一条记录写入的位置
+        long garbage;               // 失效记录占用的字节
+        int capacity;
+        int shift;                  // 槽位下标取乘法扰动后的高位
+        int live;
+        int used;                   // live加墓碑个数
+        int modCount;               // 槽位增删、索引重建时加一，覆盖和压缩不改变槽位不计入
+        private final ByteBuffer slotBuf = ByteBuffer.allocate(Long.BYTES);
+        private final ByteBuffer headerBuf = ByteBuffer.allocate(HEADER);
+
+        ColdSegment(Path dir, DurableHashMap.Codec<K> keyCodec, DurableHashMap.Codec<V> valueCodec)
+                throws IOException {
+            this.dir = dir;
+            this.keyCodec = keyCodec;
+            this.valueCodec = valueCodec;
+            data = openTemp(".dat");
+            index = openTemp(".idx");
+            setCapacity(MIN_CAPACITY);
+        }
+
+        private FileChannel openTemp(String suffix) throws IOException {
+            Path file = Files.createTempFile(dir, "cold", suffix);
+            return FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+        }
+
+        private void setCapacity(int n) {
+            capacity = n;
+            shift = Integer.numberOfLeadingZeros(n) + 1;
+        }
+
+        private int indexFor(int h) {
+            return (h * 0x9E3779B9) >>> shift;
+        }
+
+        /*
+         * 作用：返回key所在的槽位，不存在时返回-1
+         */
+        int find(Object key, int h) {
+            long tag = h & TAG_MASK;
+            int mask = capacity - 1;
+            for (int i = indexFor(h), n = 0; n < capacity; i = (i + 1) & mask, ++n) {
+                long s = readSlot(i);
+                if (s == EMPTY)
+                    return -1;
+                if (s != TOMBSTONE && (s >>> TAG_SHIFT) == tag && keyMatches(key, h, s))
+                    return i;
+            }
+            return -1;
+        }
+
+        private boolean keyMatches(Object key, int h, long slot) {
+            long off = (slot & OFFSET_MASK) - 1;
+            readHeader(off);
+            if (headerBuf.getInt(0) != h)
+                return false;
+            int kl = headerBuf.getInt(4);
+            if (kl < 0)
+                return key == null;
+            return key != null && key.equals(keyCodec.decode(read(off + HEADER, kl)));
+        }
+
+        K keyAt(int slot) {
+            long off = (readSlot(slot) & OFFSET_MASK) - 1;
+            readHeader(off);
+            int kl = headerBuf.getInt(4);
+            return (kl < 0) ? null : keyCodec.decode(read(off + HEADER, kl));
+        }
+
+        V valueAt(int slot) {
+            long off = (readSlot(slot) & OFFSET_MASK) - 1;
+            readHeader(off);
+            int kl = headerBuf.getInt(4), vl = headerBuf.getInt(8);
+            return (vl < 0) ? null : valueCodec.decode(read(off + HEADER + Math.max(kl, 0), vl));
+        }
+
+        /*
+         * 作用：插入一个冷层中不存在的key，调用方保证key不在冷层中
+         */
+        void insert(K key, int h, V value) {
+            if (used + 1 > capacity >>> 1) {
+                if (capacity == MAX_CAPACITY && live + 1 > capacity >>> 1)
+                    throw new IllegalStateException("Cold segment full: " + live);
+                rebuild((live + 1 > capacity >>> 2 && capacity < MAX_CAPACITY) ? capacity << 1 : capacity);
+            }
+            long s = slotFor(h, append(key, h, value));
+            int mask = capacity - 1;
+            for (int i = indexFor(h);; i = (i + 1) & mask) {
+                long t = readSlot(i);
+                if (t == EMPTY || t == TOMBSTONE) {
+                    writeSlot(i, s);
+                    if (t == EMPTY)
+                        ++used;
+                    ++live;
+                    ++modCount;
+                    return;
+                }
+            }
+        }
+
+        // 追加新记录并把slot指向它，槽位下标不变
+        void replace(int slot, K key, int h, V value) {
+            long old = readSlot(slot);
+            writeSlot(slot, slotFor(h, append(key, h, value)));
+            release(old);
+        }
+
+        void removeAt(int slot) {
+            long old = readSlot(slot);
+            writeSlot(slot, TOMBSTONE);
+            --live;
+            ++modCount;
+            release(old);
+        }
+
+        // 记录旧记录的字节为失效，必要时压缩
+        private void release(long slot) {
+            long off = (slot & OFFSET_MASK) - 1;
+            readHeader(off);
+            garbage += HEADER + Math.max(headerBuf.getInt(4), 0) + Math.max(headerBuf.getInt(8), 0);
+            if (garbage > MIN_COMPACT_BYTES && garbage > dataEnd >>> 1)
+                compact();
+        }
+
+        private static long slotFor(int h, long off) {
+            return ((long) (h & TAG_MASK) << TAG_SHIFT) | (off + 1);
+        }
+
+        private long append(K key, int h, V value) {
+            byte[] k = (key == null) ? null : keyCodec.encode(key);
+            byte[] v = (value == null) ? null : valueCodec.encode(value);
+            int kl = (k == null) ? 0 : k.length, vl = (v == null) ? 0 : v.length;
+            long off = dataEnd;
+            // 偏移只有40位，-1(墓碑)不能出现在槽位中
+            if (off + HEADER + kl + vl >= OFFSET_MASK - 1)
+                throw new IllegalStateException("Cold segment full: " + off);
+            ByteBuffer b = ByteBuffer.allocate(HEADER + kl + vl);
+            b.putInt(h).putInt((k == null) ? -1 : kl).putInt((v == null) ? -1 : vl);
+            if (k != null)
+                b.put(k);
+            if (v != null)
+                b.put(v);
+            b.flip();
+            write(data, b, off);
+            dataEnd = off + b.capacity();
+            return off;
+        }
+
+        /*
+         * 作用：把有效槽位重新插入容量为n的新索引文件，清掉墓碑
+         *      新槽位的位置需要完整hash，从记录头读取
+         */
+        private void rebuild(int n) {
+            FileChannel old = index;
+            int oldCapacity = capacity;
+            try {
+                index = openTemp(".idx");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            setCapacity(n);
+            int mask = n - 1;
+            long[] chunk = new long[SCAN_CHUNK];
+            for (int base = 0; base < oldCapacity; base += SCAN_CHUNK) {
+                int len = readSlots(old, base, chunk, Math.min(SCAN_CHUNK, oldCapacity - base));
+                for (int j = 0; j < len; ++j) {
+                    long s = chunk[j];
+                    if (s == EMPTY || s == TOMBSTONE)
+                        continue;
+                    readHeader((s & OFFSET_MASK) - 1);
+                    int i = indexFor(headerBuf.getInt(0));
+                    while (readSlot(i) != EMPTY)
+                        i = (i + 1) & mask;
+                    writeSlot(i, s);
+                }
+            }
+            used = live;
+            ++modCount;
+            closeQuietly(old);
+        }
+
+        /*
+         * 作用：按槽位顺序把有效记录复制到新数据文件，原地改写槽位中的偏移
+         *      槽位下标不变，正在进行的遍历不受影响
+         */
+        private void compact() {
+            FileChannel out;
+            try {
+                out = openTemp(".dat");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            long end = 0L;
+            long[] chunk = new long[SCAN_CHUNK];
+            ByteBuffer wbuf = ByteBuffer.allocate(1 << 16);
+            for (int base = 0; base < capacity; base += SCAN_CHUNK) {
+                int len = readSlots(base, chunk);
+                boolean dirty = false;
+                for (int j = 0; j < len; ++j) {
+                    long s = chunk[j];
+                    if (s == EMPTY || s == TOMBSTONE)
+                        continue;
+                    long off = (s & OFFSET_MASK) - 1;
+                    readHeader(off);
+                    int size = HEADER + Math.max(headerBuf.getInt(4), 0) + Math.max(headerBuf.getInt(8), 0);
+                    ByteBuffer rec = ByteBuffer.wrap(read(off, size));
+                    if (wbuf.remaining() < size) {
+                        wbuf.flip();
+                        write(out, wbuf, end - wbuf.remaining());
+                        wbuf.clear();
+                    }
+                    if (size > wbuf.capacity())
+                        write(out, rec, end);
+                    else
+                        wbuf.put(rec);
+                    chunk[j] = (s & ~OFFSET_MASK) | (end + 1);
+                    end += size;
+                    dirty = true;
+                }
+                if (dirty)
+                    writeSlots(base, chunk, len);
+            }
+            wbuf.flip();
+            write(out, wbuf, end - wbuf.remaining());
+            closeQuietly(data);
+            data = out;
+            dataEnd = end;
+            garbage = 0L;
+        }
+
+        void clear() {
+            try {
+                data.truncate(0L);
+                index.truncate(0L);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            dataEnd = garbage = 0L;
+            live = used = 0;
+            setCapacity(MIN_CAPACITY);
+            ++modCount;
+        }
+
+        public void close() throws IOException {
+            try {
+                data.close();
+            } finally {
+                index.close();
+            }
+        }
+
+        private long readSlot(int i) {
+            ByteBuffer b = slotBuf;
+            b.clear();
+            try {
+                long pos = (long) i * Long.BYTES;
+                while (b.hasRemaining()) {
+                    if (index.read(b, pos + b.position()) < 0)
+                        return EMPTY;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return b.getLong(0);
+        }
+
+        private void writeSlot(int i, long s) {
+            ByteBuffer b = slotBuf;
+            b.clear();
+            b.putLong(0, s);
+            write(index, b, (long) i * Long.BYTES);
+        }
+
+        // 从base开始读取最多chunk.length个槽位，返回读取的个数，文件末尾之外的槽位为0
+        int readSlots(int base, long[] chunk) {
+            return readSlots(index, base, chunk, Math.min(chunk.length, capacity - base));
+        }
+
+        private static int readSlots(FileChannel ch, int base, long[] chunk, int len) {
+            ByteBuffer b = ByteBuffer.allocate(len * Long.BYTES);
+            try {
+                long pos = (long) base * Long.BYTES;
+                while (b.hasRemaining() && ch.read(b, pos + b.position()) >= 0)
+                    ;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            Arrays.fill(chunk, 0, len, EMPTY);
+            b.flip();
+            b.asLongBuffer().get(chunk, 0, b.remaining() / Long.BYTES);
+            return len;
+        }
+
+        private void writeSlots(int base, long[] chunk, int len) {
+            ByteBuffer b = ByteBuffer.allocate(len * Long.BYTES);
+            b.asLongBuffer().put(chunk, 0, len);
+            write(index, b, (long) base * Long.BYTES);
+        }
+
+        private void readHeader(long off) {
+            ByteBuffer b = headerBuf;
+            b.clear();
+            readFully(data, b, off);
+        }
+
+        private byte[] read(long off, int len) {
+            byte[] bytes = new byte[len];
+            readFully(data, ByteBuffer.wrap(bytes), off);
+            return bytes;
+        }
+
+        private static void readFully(FileChannel ch, ByteBuffer b, long pos) {
+            try {
+                long p = pos;
+                while (b.hasRemaining()) {
+                    int r = ch.read(b, p);
+                    if (r < 0)
+                        throw new EOFException("Truncated cold record at " + pos);
+                    p += r;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private static void write(FileChannel ch, ByteBuffer b, long pos) {
+            try {
+                long p = pos;
+                while (b.hasRemaining())
+                    p += ch.write(b, p);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private static void closeQuietly(FileChannel ch) {
+            try {
+                ch.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
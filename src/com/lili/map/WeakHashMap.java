@@ -0,0 +1,205 @@
+package com.lili.map;
+
+import java.lang.ref.ReferenceQueue;
+import java.util.*;
+
+/*
+ * 弱引用key的Map，key在外部不再被引用时对应的映射会被自动删除
+ *
+ * 底层直接复用HashMap的散列表：key被包装成WeakInterner.WeakKey存入HashMap，查找时用WeakInterner.Probe
+ * 包装参数key，不需要为每次查找创建WeakReference
+ *
+ * 清理：key被回收后WeakKey进入ReferenceQueue，每次读写时从队列中取出并通过removeNode按引用删除，
+ *      不扫描整个table，清理开销只与被回收的key的数量有关
+ *      写操作清空整个队列，读操作最多清理EXPUNGE_BATCH个，避免读操作偶尔出现长耗时
+ *
+ * 与HashMap一样不是线程安全的
+ */
+public class WeakHashMap<K,V> extends AbstractMap<K,V> {
+
+    // 读操作每次最多清理的过期条目数
+    static final int EXPUNGE_BATCH = 64;
+    // null key的替身，null无法被WeakReference引用
+    private static final Object NULL_KEY = new Object();
+
+    // key: WeakInterner.WeakKey
+    private final HashMap<Object,V> table;
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+    private transient Set<Entry<K,V>> entrySet;
+
+    public WeakHashMap(int initialCapacity, float loadFactor) {
+        table = new HashMap<>(initialCapacity, loadFactor);
+    }
+    public WeakHashMap(int initialCapacity) {
+        table = new HashMap<>(initialCapacity);
+    }
+    public WeakHashMap() {
+        table = new HashMap<>();
+    }
+    public WeakHashMap(java.util.Map<? extends K, ? extends V> m) {
+        this(Math.max((int) (m.size() / HashMap.DEFAULT_LOAD_FACTOR) + 1,
+                HashMap.DEFAULT_INITIAL_CAPACITY));
+        putAll(m);
+    }
+
+    static Object maskNull(Object key) {
+        return (key == null) ? NULL_KEY : key;
+    }
+    @SuppressWarnings("unchecked")
+    static <K> K unmaskNull(Object key) {
+        return (key == NULL_KEY) ? null : (K) key;
+    }
+
+    /*
+     * 作用：从ReferenceQueue中取出已被回收的key并从散列表中删除
+     *      max: 本次最多清理的个数
+     *      用HashMap.expungeNode删除，不改变modCount，迭代期间的get/size不会导致迭代器失效
+     */
+    private void expungeStaleEntries(int max) {
+        Object x;
+        while (max-- > 0 && (x = queue.poll()) != null)
+            table.expungeNode(x, null, false);
+    }
+
+    public int size() {
+        expungeStaleEntries(Integer.MAX_VALUE);
+        return table.size();
+    }
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+    public V get(Object key) {
+        expungeStaleEntries(EXPUNGE_BATCH);
+        return table.get(new WeakInterner.Probe(maskNull(key)));
+    }
+    public boolean containsKey(Object key) {
+        expungeStaleEntries(EXPUNGE_BATCH);
+        return table.containsKey(new WeakInterner.Probe(maskNull(key)));
+    }
+    public boolean containsValue(Object value) {
+        expungeStaleEntries(Integer.MAX_VALUE);
+        return table.containsValue(value);
+    }
+    /*
+     * 新建的WeakKey与已存在的WeakKey按referent判断相等，putVal命中已有Node时只替换value，
+     * Node中原来的WeakKey保持不变，新建的WeakKey直接丢弃
+     */
+    public V put(K key, V value) {
+        expungeStaleEntries(Integer.MAX_VALUE);
+        Object k = maskNull(key);
+        return table.put(new WeakInterner.WeakKey<>(k, k.hashCode(), queue), value);
+    }
+    public V remove(Object key) {
+        expungeStaleEntries(Integer.MAX_VALUE);
+        return table.remove(new WeakInterner.Probe(maskNull(key)));
+    }
+    public void clear() {
+        // 清空队列，避免clear之后再去删除已经不存在的条目
+        while (queue.poll() != null)
+            ;
+        table.clear();
+        while (queue.poll() != null)
+            ;
+    }
+
+    public Set<Entry<K,V>> entrySet() {
+        Set<Entry<K,V>> es;
+        return (es = entrySet) == null ? (entrySet = new EntrySet()) : es;
+    }
+
+    final class EntrySet extends AbstractSet<Entry<K,V>> {
+        public final int size()                 { return WeakHashMap.this.size(); }
+        public final void clear()               { WeakHashMap.this.clear(); }
+        public final Iterator<Entry<K,V>> iterator() {
+            return new EntryIterator();
+        }
+        public final boolean contains(Object o) {
+            if (!(o instanceof Entry))
+                return false;
+            Entry<?,?> e = (Entry<?,?>) o;
+            Object key = e.getKey();
+            return containsKey(key) && Objects.equals(get(key), e.getValue());
+        }
+        public final boolean remove(Object o) {
+            if (contains(o)) {
+                WeakHashMap.this.remove(((Entry<?,?>) o).getKey());
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /*
+     * 迭代时跳过key已被回收的条目。返回的WeakEntry强引用key，保证迭代期间key不会被回收
+     * 只有在需要时(hasNext/next)才向前查找下一个存活条目，因此next之后紧接着的remove可以直接
+     * 交给底层HashMap迭代器删除；中间调用过hasNext时底层迭代器已经越过当前条目，不支持删除
+     */
+    final class EntryIterator implements Iterator<Entry<K,V>> {
+        final Iterator<Entry<Object,V>> it;
+        WeakEntry next;        // 已经找到但还没返回的条目
+        boolean canRemove;
+
+        EntryIterator() {
+            expungeStaleEntries(Integer.MAX_VALUE);
+            it = table.entrySet().iterator();
+        }
+
+        public boolean hasNext() {
+            if (next != null)
+                return true;
+            while (it.hasNext()) {
+                Entry<Object,V> e = it.next();
+                canRemove = false;
+                Object k = ((WeakInterner.WeakKey<?>) e.getKey()).get();
+                if (k != null) {
+                    next = new WeakEntry(k, e);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public Entry<K,V> next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            WeakEntry e = next;
+            next = null;
+            canRemove = true;
+            return e;
+        }
+
+        public void remove() {
+            if (!canRemove)
+                throw new IllegalStateException();
+            canRemove = false;
+            it.remove();
+        }
+    }
+
+    final class WeakEntry implements Entry<K,V> {
+        final Object key;           // 强引用 迭代期间保持key存活
+        final Entry<Object,V> node;
+
+        WeakEntry(Object key, Entry<Object,V> node) {
+            this.key = key;
+            this.node = node;
+        }
+
+        public K getKey()             { return unmaskNull(key); }
+        public V getValue()           { return node.getValue(); }
+        public V setValue(V value)    { return node.setValue(value); }
+        public String toString()      { return getKey() + "=" + getValue(); }
+
+        public int hashCode() {
+            return Objects.hashCode(getKey()) ^ Objects.hashCode(getValue());
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry))
+                return false;
+            Entry<?,?> e = (Entry<?,?>) o;
+            return Objects.equals(getKey(), e.getKey()) &&
+                    Objects.equals(getValue(), e.getValue());
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.lili.map;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Objects;
+
+/*
+ * 弱引用的规范实例池：intern(sample)返回池中与sample相等的规范实例，不存在时把sample登记为规范实例
+ * 池只通过WeakReference持有规范实例，外部不再引用时可以被GC回收，回收后的空引用在下一次intern时清理
+ *
+ * 底层复用HashMap的getNode查找路径：查找时用Probe包装sample，Probe.equals直接比较弱引用指向的对象，
+ * 因此查找不需要为sample额外创建WeakReference
+ *
+ * 与HashMap一样不是线程安全的
+ */
+public class WeakInterner<T> {
+
+    // key: 指向规范实例的弱引用  value: 不使用
+    private final HashMap<Object,Boolean> table;
+    // 规范实例被回收后 对应的WeakKey会被放入该队列
+    private final ReferenceQueue<T> queue = new ReferenceQueue<>();
+
+    public WeakInterner() {
+        table = new HashMap<>();
+    }
+    public WeakInterner(int initialCapacity) {
+        table = new HashMap<>(initialCapacity);
+    }
+
+    public T intern(T sample) {
+        Objects.requireNonNull(sample);
+        expungeStaleEntries();
+        Probe probe = new Probe(sample);
+        for (;;) {
+            @SuppressWarnings("unchecked")
+            WeakKey<T> wk = (WeakKey<T>) table.canonicalKey(probe);
+            if (wk == null) {
+                table.put(new WeakKey<>(sample, probe.hash, queue), Boolean.TRUE);
+                return sample;
+            }
+            T canonical = wk.get();
+            if (canonical != null)
+                return canonical;
+            // 规范实例刚好被回收但还没进入队列 直接删除后重试
+            table.remove(wk);
+        }
+    }
+
+    // 池中的元素个数 包含已被回收但尚未清理的条目
+    public int size() {
+        expungeStaleEntries();
+        return table.size();
+    }
+
+    private void expungeStaleEntries() {
+        for (Object x; (x = queue.poll()) != null; )
+            table.remove(x);
+    }
+
+    /*
+     * 池中的key。hashCode缓存规范实例的hashCode，规范实例被回收后依然能路由到同一个桶完成删除
+     * 两个WeakKey的referent都还存活且相等时视为相等；referent已被回收时只和自己相等，
+     * 删除时依靠getNode中 k == key 的判断命中
+     */
+    static final class WeakKey<T> extends WeakReference<T> {
+        final int hash;
+
+        WeakKey(T referent, int hash, ReferenceQueue<? super T> q) {
+            super(referent, q);
+            this.hash = hash;
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object o) {
+            if (o == this)
+                return true;
+            if (o instanceof WeakKey) {
+                WeakKey<?> wk = (WeakKey<?>) o;
+                Object a, b;
+                return wk.hash == hash && (a = get()) != null &&
+                        (b = wk.get()) != null && a.equals(b);
+            }
+            return false;
+        }
+    }
+
+    /*
+     * 查找用的临时key，getNode中调用probe.equals(storedKey)，与池中弱引用指向的对象比较
+     */
+    static final class Probe {
+        final Object referent;
+        final int hash;
+
+        Probe(Object referent) {
+            this.referent = referent;
+            this.hash = referent.hashCode();
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object o) {
+            if (o instanceof WeakKey) {
+                WeakKey<?> wk = (WeakKey<?>) o;
+                Object r;
+                return wk.hash == hash && (r = wk.get()) != null && referent.equals(r);
+            }
+            return false;
+        }
+    }
+}